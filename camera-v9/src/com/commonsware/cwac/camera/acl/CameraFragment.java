@@ -25,8 +25,12 @@ import android.support.v4.app.Fragment;
 import java.io.IOException;
 import com.commonsware.cwac.camera.CameraHost;
 import com.commonsware.cwac.camera.CameraView;
+import com.commonsware.cwac.camera.DeviceCalibrator;
+import com.commonsware.cwac.camera.FaceTracker;
 import com.commonsware.cwac.camera.PictureTransaction;
+import com.commonsware.cwac.camera.PreviewEncoder;
 import com.commonsware.cwac.camera.SimpleCameraHost;
+import com.commonsware.cwac.camera.ZoomController;
 import com.commonsware.cwac.camera.ZoomTransaction;
 
 import java.lang.Deprecated;
@@ -163,6 +167,18 @@ public class CameraFragment extends Fragment {
     cameraView.takePicture(xact);
   }
 
+  /**
+   * Call this to take a picture while recording video,
+   * without stopping the recording.
+   * 
+   * @param xact
+   *          PictureTransaction with configuration data for
+   *          the picture to be taken
+   */
+  public void takeVideoSnapshot(PictureTransaction xact) {
+    cameraView.takeVideoSnapshot(xact);
+  }
+
   /**
    * @return true if we are recording video right now, false
    *         otherwise
@@ -171,6 +187,23 @@ public class CameraFragment extends Fragment {
     return(cameraView == null ? false : cameraView.isRecording());
   }
 
+  /**
+   * Call this to get ready to record video, e.g., when the
+   * user switches to video mode, so that a later call to
+   * record() starts quickly.
+   */
+  public void armRecording() {
+    cameraView.armRecording();
+  }
+
+  /**
+   * Cancels an earlier call to armRecording(), if record()
+   * has not been called since.
+   */
+  public void disarmRecording() {
+    cameraView.disarmRecording();
+  }
+
   /**
    * Call this to begin recording video.
    * 
@@ -192,6 +225,27 @@ public class CameraFragment extends Fragment {
     cameraView.stopRecording();
   }
 
+  /**
+   * Call this to begin recording video by encoding preview
+   * frames, in any orientation, while your preview callback
+   * keeps receiving frames. Requires API Level 18+.
+   */
+  public void startPreviewRecording(PreviewEncoder encoder) {
+    cameraView.startPreviewRecording(encoder);
+  }
+
+  /**
+   * Call this to stop the recording triggered earlier by a
+   * call to startPreviewRecording()
+   */
+  public void stopPreviewRecording() {
+    cameraView.stopPreviewRecording();
+  }
+
+  public boolean isPreviewRecording() {
+    return(cameraView == null ? false : cameraView.isPreviewRecording());
+  }
+
   /**
    * @return the orientation of the screen, in degrees
    *         (0-360)
@@ -230,6 +284,23 @@ public class CameraFragment extends Fragment {
     cameraView.cancelAutoFocus();
   }
 
+  /**
+   * Call this to focus and meter on the part of the preview
+   * around a point (e.g., where the user tapped), in the
+   * CameraView's coordinates.
+   */
+  public void focusAt(float x, float y) {
+    cameraView.focusAt(x, y);
+  }
+
+  /**
+   * Call this to undo focusAt() and go back to continuous
+   * auto-focus, if the camera supports it.
+   */
+  public void resetFocus() {
+    cameraView.resetFocus();
+  }
+
   /**
    * @return true if auto-focus is an option on this device,
    *         false otherwise
@@ -270,6 +341,40 @@ public class CameraFragment extends Fragment {
     return(cameraView.zoomTo(level));
   }
 
+  /**
+   * @return a ZoomController, for zooming to levels that
+   *         change rapidly (e.g., from a SeekBar), where only
+   *         the latest level matters
+   */
+  public ZoomController getZoomController() {
+    return(cameraView.getZoomController());
+  }
+
+  /**
+   * Call this to turn pinch-to-zoom on the CameraView on or
+   * off (the default).
+   */
+  public void setPinchToZoomEnabled(boolean enabled) {
+    cameraView.setPinchToZoomEnabled(enabled);
+  }
+
+  /**
+   * Calls setFaceTracker() on the CameraView, to have
+   * detected faces delivered, smoothed and in the view's
+   * coordinates, to the FaceTracker.
+   */
+  public void setFaceTracker(FaceTracker tracker) {
+    cameraView.setFaceTracker(tracker);
+  }
+
+  /**
+   * Calls calibrate() on the CameraView, to measure this
+   * device's camera with a few throwaway pictures.
+   */
+  public void calibrate(DeviceCalibrator calibrator) {
+    cameraView.calibrate(calibrator);
+  }
+
   /**
    * Calls startFaceDetection() on the CameraView, which in
    * turn calls startFaceDetection() on the underlying
@@ -0,0 +1,213 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import com.commonsware.cwac.camera.CameraHost.RecordingHint;
+
+/**
+ * A DeviceProfile made of timings and limits measured on
+ * this device by a DeviceCalibrator, layered over another
+ * DeviceProfile (normally the one from the XML resources)
+ * for everything that has not been measured. This is what
+ * DeviceProfile.getInstance() returns.
+ *
+ * Measurements are kept in SharedPreferences, and are only
+ * used on the build of Android they were taken on, as a
+ * system update can change how the camera behaves. They are
+ * read when first needed, which CameraView arranges to be
+ * on its camera thread.
+ */
+public class CalibratedDeviceProfile extends DeviceProfile {
+  private static final String PREFS_NAME="cwac_camera_calibration";
+  private static final String PREF_FINGERPRINT="fingerprint";
+  private static final String PREF_SHUTTER_LAG="shutterLag";
+  private static final String PREF_PREVIEW_RESTART_TIME=
+      "previewRestartTime";
+  private static final String PREF_FOCUS_TIME="focusTime";
+  private static final String PREF_MAX_PICTURE_HEIGHT="maxPictureHeight";
+  private final DeviceProfile base;
+  private final Context ctxt;
+  private SharedPreferences prefs=null;
+  private boolean isCalibrated=false;
+  private int shutterLag=-1;
+  private int previewRestartTime=-1;
+  private int focusTime=-1;
+  private int maxPictureHeight=-1;
+
+  /**
+   * @param base
+   *          where everything that has not been measured
+   *          comes from, such as your own DeviceProfile, if
+   *          you give one to SimpleCameraHost.Builder
+   */
+  public CalibratedDeviceProfile(Context ctxt, DeviceProfile base) {
+    this.base=base;
+    this.ctxt=ctxt.getApplicationContext();
+  }
+
+  /**
+   * Reads the measurements, if that has not happened yet.
+   */
+  synchronized void load() {
+    if (prefs != null) {
+      return;
+    }
+
+    prefs=ctxt.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+
+    if (Build.FINGERPRINT.equals(prefs.getString(PREF_FINGERPRINT, null))) {
+      shutterLag=prefs.getInt(PREF_SHUTTER_LAG, -1);
+      previewRestartTime=prefs.getInt(PREF_PREVIEW_RESTART_TIME, -1);
+      focusTime=prefs.getInt(PREF_FOCUS_TIME, -1);
+      maxPictureHeight=prefs.getInt(PREF_MAX_PICTURE_HEIGHT, -1);
+      isCalibrated=true;
+    }
+  }
+
+  public DeviceProfile getBaseProfile() {
+    return(base);
+  }
+
+  /**
+   * @return true if a DeviceCalibrator has measured this
+   *         device, on this build of Android
+   */
+  synchronized public boolean isCalibrated() {
+    load();
+
+    return(isCalibrated);
+  }
+
+  /**
+   * Forgets the measurements, going back to the base
+   * profile.
+   */
+  synchronized public void clear() {
+    load();
+    isCalibrated=false;
+    shutterLag=-1;
+    previewRestartTime=-1;
+    focusTime=-1;
+    maxPictureHeight=-1;
+    prefs.edit().clear().apply();
+  }
+
+  /**
+   * Called by DeviceCalibrator with its measurements, -1
+   * for any that it could not take.
+   */
+  synchronized void update(int shutterLag, int previewRestartTime,
+                           int focusTime, int maxPictureHeight) {
+    load();
+    this.shutterLag=shutterLag;
+    this.previewRestartTime=previewRestartTime;
+    this.focusTime=focusTime;
+    this.maxPictureHeight=maxPictureHeight;
+    isCalibrated=true;
+
+    prefs.edit().putString(PREF_FINGERPRINT, Build.FINGERPRINT)
+         .putInt(PREF_SHUTTER_LAG, shutterLag)
+         .putInt(PREF_PREVIEW_RESTART_TIME, previewRestartTime)
+         .putInt(PREF_FOCUS_TIME, focusTime)
+         .putInt(PREF_MAX_PICTURE_HEIGHT, maxPictureHeight).apply();
+  }
+
+  @Override
+  synchronized public int getShutterLag() {
+    load();
+
+    return(shutterLag >= 0 ? shutterLag : base.getShutterLag());
+  }
+
+  @Override
+  synchronized public int getPreviewRestartTime() {
+    load();
+
+    return(previewRestartTime >= 0 ? previewRestartTime
+        : base.getPreviewRestartTime());
+  }
+
+  @Override
+  synchronized public int getFocusTime() {
+    load();
+
+    return(focusTime >= 0 ? focusTime : base.getFocusTime());
+  }
+
+  // the largest picture that could be decoded (and
+  // rotated) here, though never more than the base
+  // profile allows
+
+  @Override
+  synchronized public int getMaxPictureHeight() {
+    load();
+
+    int result=base.getMaxPictureHeight();
+
+    if (maxPictureHeight > 0) {
+      result=Math.min(result, maxPictureHeight);
+    }
+
+    return(result);
+  }
+
+  @Override
+  public int getMinPictureHeight() {
+    return(base.getMinPictureHeight());
+  }
+
+  @Override
+  public int getPictureDelay() {
+    return(base.getPictureDelay());
+  }
+
+  @Override
+  public boolean useTextureView() {
+    return(base.useTextureView());
+  }
+
+  @Override
+  public boolean portraitFFCFlipped() {
+    return(base.portraitFFCFlipped());
+  }
+
+  @Override
+  public boolean doesZoomActuallyWork(boolean isFFC) {
+    return(base.doesZoomActuallyWork(isFFC));
+  }
+
+  @Override
+  public int getDefaultOrientation() {
+    return(base.getDefaultOrientation());
+  }
+
+  @Override
+  public boolean useDeviceOrientation() {
+    return(base.useDeviceOrientation());
+  }
+
+  @Override
+  public RecordingHint getDefaultRecordingHint() {
+    return(base.getDefaultRecordingHint());
+  }
+
+  @Override
+  public boolean isCustomRom() {
+    return(base.isCustomRom());
+  }
+}
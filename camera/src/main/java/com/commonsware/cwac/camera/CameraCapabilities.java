@@ -0,0 +1,506 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.hardware.Camera;
+import android.os.Build;
+import android.util.Log;
+import android.util.SparseArray;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What a given camera can do, as reported by
+ * Camera.getCameraInfo() and Camera.Parameters. Instances
+ * are kept in a process-wide registry keyed by camera ID,
+ * so the camera info is only looked up once, and the
+ * parameter-derived values are persisted to a small file
+ * keyed by Build.FINGERPRINT, so they are available on
+ * later runs before the camera is even opened.
+ *
+ * Sizes and FPS ranges are returned as packed int arrays:
+ * width/height (or min/max) pairs, one after the other.
+ *
+ * The preview size that the CameraHost last chose for the
+ * camera is persisted as well, so CameraView can lay out
+ * the preview at that size before the camera is opened.
+ */
+public class CameraCapabilities {
+  private static final String FILENAME="cwac_camera_capabilities";
+  private static final int MAGIC=0x43574143; // CWAC
+  private static final int VERSION=2;
+  private static final SparseArray<CameraCapabilities> REGISTRY=
+      new SparseArray<CameraCapabilities>();
+  private static boolean isLoaded=false;
+
+  private final int cameraId;
+  private int facing;
+  private int orientation;
+  private boolean hasParameters=false;
+  private int[] previewSizes=new int[0];
+  private int[] pictureSizes=new int[0];
+  private int[] previewFpsRanges=new int[0];
+  private List<String> flashModes=Collections.emptyList();
+  private List<String> focusModes=Collections.emptyList();
+  private int maxZoom=0;
+  private boolean isSmoothZoomSupported=false;
+  private int[] zoomRatios=new int[0];
+  private int maxNumDetectedFaces=0;
+  private int maxNumFocusAreas=0;
+  private int maxNumMeteringAreas=0;
+  private boolean isVideoSnapshotSupported=false;
+  private volatile int[] negotiatedPreviewSize=new int[0];
+
+  private CameraCapabilities(int cameraId) {
+    this.cameraId=cameraId;
+  }
+
+  /**
+   * @return the capabilities of the requested camera; if
+   *         the camera has not been opened on this build of
+   *         the device yet, only the camera info is
+   *         available, and hasParameters() returns false
+   */
+  synchronized public static CameraCapabilities get(Context ctxt,
+                                                    int cameraId) {
+    if (!isLoaded) {
+      load(ctxt);
+    }
+
+    CameraCapabilities result=REGISTRY.get(cameraId);
+
+    if (result == null) {
+      Camera.CameraInfo info=new Camera.CameraInfo();
+
+      Camera.getCameraInfo(cameraId, info);
+      result=new CameraCapabilities(cameraId);
+      result.facing=info.facing;
+      result.orientation=info.orientation;
+      REGISTRY.put(cameraId, result);
+    }
+
+    return(result);
+  }
+
+  /**
+   * Reads the capabilities saved on an earlier run, if that
+   * has not happened yet. get() does this too, but get() is
+   * also called from the main application thread, so call
+   * this from a background thread ahead of time. CameraView
+   * does this on its camera thread.
+   */
+  synchronized public static void preload(Context ctxt) {
+    if (!isLoaded) {
+      load(ctxt);
+    }
+  }
+
+  /**
+   * Records the parameter-derived capabilities of an open
+   * camera, if they are not known yet, and persists them
+   * for later runs.
+   *
+   * @param parameters
+   *          the parameters of the just-opened camera
+   * @return the capabilities
+   */
+  synchronized public static CameraCapabilities update(Context ctxt,
+                                                       int cameraId,
+                                                       Camera.Parameters parameters) {
+    CameraCapabilities result=get(ctxt, cameraId);
+
+    if (!result.hasParameters && parameters != null) {
+      result.readParameters(parameters);
+      save(ctxt);
+    }
+
+    return(result);
+  }
+
+  /**
+   * Remembers the preview size that the CameraHost chose
+   * for a view of this size, persisting it if it changed.
+   * The camera must have been passed to update() already.
+   */
+  synchronized public static void recordPreviewSize(Context ctxt,
+                                                    int cameraId,
+                                                    int displayOrientation,
+                                                    int width,
+                                                    int height,
+                                                    int previewWidth,
+                                                    int previewHeight) {
+    CameraCapabilities caps=get(ctxt, cameraId);
+    int[] negotiated=
+        { displayOrientation, width, height, previewWidth, previewHeight };
+
+    if (caps.hasParameters
+        && !Arrays.equals(caps.negotiatedPreviewSize, negotiated)) {
+      caps.negotiatedPreviewSize=negotiated;
+      save(ctxt);
+    }
+  }
+
+  public int getCameraId() {
+    return(cameraId);
+  }
+
+  /**
+   * @return Camera.CameraInfo.CAMERA_FACING_BACK or
+   *         CAMERA_FACING_FRONT
+   */
+  public int getFacing() {
+    return(facing);
+  }
+
+  public boolean isFrontFacing() {
+    return(facing == Camera.CameraInfo.CAMERA_FACING_FRONT);
+  }
+
+  /**
+   * @return the orientation of the camera sensor, in
+   *         degrees, as in Camera.CameraInfo
+   */
+  public int getOrientation() {
+    return(orientation);
+  }
+
+  /**
+   * @return true if the values derived from
+   *         Camera.Parameters are known, false if only the
+   *         camera info is
+   */
+  public boolean hasParameters() {
+    return(hasParameters);
+  }
+
+  /**
+   * @return the preview size, as a packed width/height
+   *         pair, that the CameraHost last chose for a view
+   *         of this size and display orientation, or null if
+   *         it was last asked about a different view
+   */
+  public int[] getNegotiatedPreviewSize(int displayOrientation, int width,
+                                        int height) {
+    int[] negotiated=negotiatedPreviewSize;
+
+    if (negotiated.length == 5 && negotiated[0] == displayOrientation
+        && negotiated[1] == width && negotiated[2] == height) {
+      return(new int[] { negotiated[3], negotiated[4] });
+    }
+
+    return(null);
+  }
+
+  public int[] getPreviewSizes() {
+    return(previewSizes.clone());
+  }
+
+  public int[] getPictureSizes() {
+    return(pictureSizes.clone());
+  }
+
+  public int[] getPreviewFpsRanges() {
+    return(previewFpsRanges.clone());
+  }
+
+  public List<String> getSupportedFlashModes() {
+    return(flashModes);
+  }
+
+  public List<String> getSupportedFocusModes() {
+    return(focusModes);
+  }
+
+  public int getMaxZoom() {
+    return(maxZoom);
+  }
+
+  public boolean isSmoothZoomSupported() {
+    return(isSmoothZoomSupported);
+  }
+
+  public int[] getZoomRatios() {
+    return(zoomRatios.clone());
+  }
+
+  public int getMaxNumDetectedFaces() {
+    return(maxNumDetectedFaces);
+  }
+
+  public int getMaxNumFocusAreas() {
+    return(maxNumFocusAreas);
+  }
+
+  public int getMaxNumMeteringAreas() {
+    return(maxNumMeteringAreas);
+  }
+
+  public boolean isVideoSnapshotSupported() {
+    return(isVideoSnapshotSupported);
+  }
+
+  @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+  private void readParameters(Camera.Parameters parameters) {
+    previewSizes=pack(parameters.getSupportedPreviewSizes());
+    pictureSizes=pack(parameters.getSupportedPictureSizes());
+
+    List<int[]> fpsRanges=parameters.getSupportedPreviewFpsRange();
+
+    if (fpsRanges != null) {
+      previewFpsRanges=new int[fpsRanges.size() * 2];
+
+      for (int i=0; i < fpsRanges.size(); i++) {
+        previewFpsRanges[i * 2]=fpsRanges.get(i)[0];
+        previewFpsRanges[i * 2 + 1]=fpsRanges.get(i)[1];
+      }
+    }
+
+    flashModes=immutable(parameters.getSupportedFlashModes());
+    focusModes=immutable(parameters.getSupportedFocusModes());
+
+    if (parameters.isZoomSupported()) {
+      maxZoom=parameters.getMaxZoom();
+      isSmoothZoomSupported=parameters.isSmoothZoomSupported();
+
+      List<Integer> ratios=parameters.getZoomRatios();
+
+      if (ratios != null) {
+        zoomRatios=new int[ratios.size()];
+
+        for (int i=0; i < zoomRatios.length; i++) {
+          zoomRatios[i]=ratios.get(i);
+        }
+      }
+    }
+
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+      maxNumDetectedFaces=parameters.getMaxNumDetectedFaces();
+      maxNumFocusAreas=parameters.getMaxNumFocusAreas();
+      maxNumMeteringAreas=parameters.getMaxNumMeteringAreas();
+      isVideoSnapshotSupported=parameters.isVideoSnapshotSupported();
+    }
+
+    hasParameters=true;
+  }
+
+  private static int[] pack(List<Camera.Size> sizes) {
+    if (sizes == null) {
+      return(new int[0]);
+    }
+
+    int[] result=new int[sizes.size() * 2];
+
+    for (int i=0; i < sizes.size(); i++) {
+      result[i * 2]=sizes.get(i).width;
+      result[i * 2 + 1]=sizes.get(i).height;
+    }
+
+    return(result);
+  }
+
+  private static List<String> immutable(List<String> values) {
+    if (values == null) {
+      return(Collections.emptyList());
+    }
+
+    return(Collections.unmodifiableList(new ArrayList<String>(values)));
+  }
+
+  private static File getFile(Context ctxt) {
+    return(new File(ctxt.getCacheDir(), FILENAME));
+  }
+
+  private static void load(Context ctxt) {
+    File file=getFile(ctxt);
+
+    isLoaded=true;
+
+    if (!file.exists()) {
+      return;
+    }
+
+    DataInputStream in=null;
+
+    try {
+      in=
+          new DataInputStream(
+                              new BufferedInputStream(
+                                                      new FileInputStream(file)));
+
+      if (in.readInt() != MAGIC || in.readInt() != VERSION
+          || !Build.FINGERPRINT.equals(in.readUTF())) {
+        file.delete();
+
+        return;
+      }
+
+      int count=in.readInt();
+
+      for (int i=0; i < count; i++) {
+        CameraCapabilities caps=new CameraCapabilities(in.readInt());
+
+        caps.facing=in.readInt();
+        caps.orientation=in.readInt();
+        caps.previewSizes=readInts(in);
+        caps.pictureSizes=readInts(in);
+        caps.previewFpsRanges=readInts(in);
+        caps.flashModes=readStrings(in);
+        caps.focusModes=readStrings(in);
+        caps.maxZoom=in.readInt();
+        caps.isSmoothZoomSupported=in.readBoolean();
+        caps.zoomRatios=readInts(in);
+        caps.maxNumDetectedFaces=in.readInt();
+        caps.maxNumFocusAreas=in.readInt();
+        caps.maxNumMeteringAreas=in.readInt();
+        caps.isVideoSnapshotSupported=in.readBoolean();
+        caps.negotiatedPreviewSize=readInts(in);
+        caps.hasParameters=true;
+        REGISTRY.put(caps.cameraId, caps);
+      }
+    }
+    catch (IOException e) {
+      Log.e(CameraView.TAG, "Exception reading camera capabilities", e);
+      REGISTRY.clear();
+      file.delete();
+    }
+    finally {
+      close(in);
+    }
+  }
+
+  private static void save(Context ctxt) {
+    File file=getFile(ctxt);
+    File temp=new File(file.getPath() + ".tmp");
+    DataOutputStream out=null;
+    int count=0;
+
+    for (int i=0; i < REGISTRY.size(); i++) {
+      if (REGISTRY.valueAt(i).hasParameters) {
+        count++;
+      }
+    }
+
+    try {
+      out=
+          new DataOutputStream(
+                               new BufferedOutputStream(
+                                                        new FileOutputStream(temp)));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(Build.FINGERPRINT);
+      out.writeInt(count);
+
+      for (int i=0; i < REGISTRY.size(); i++) {
+        CameraCapabilities caps=REGISTRY.valueAt(i);
+
+        if (caps.hasParameters) {
+          out.writeInt(caps.cameraId);
+          out.writeInt(caps.facing);
+          out.writeInt(caps.orientation);
+          writeInts(out, caps.previewSizes);
+          writeInts(out, caps.pictureSizes);
+          writeInts(out, caps.previewFpsRanges);
+          writeStrings(out, caps.flashModes);
+          writeStrings(out, caps.focusModes);
+          out.writeInt(caps.maxZoom);
+          out.writeBoolean(caps.isSmoothZoomSupported);
+          writeInts(out, caps.zoomRatios);
+          out.writeInt(caps.maxNumDetectedFaces);
+          out.writeInt(caps.maxNumFocusAreas);
+          out.writeInt(caps.maxNumMeteringAreas);
+          out.writeBoolean(caps.isVideoSnapshotSupported);
+          writeInts(out, caps.negotiatedPreviewSize);
+        }
+      }
+
+      out.close();
+      out=null;
+
+      if (!temp.renameTo(file)) {
+        Log.w(CameraView.TAG, "Could not save camera capabilities");
+        temp.delete();
+      }
+    }
+    catch (IOException e) {
+      Log.e(CameraView.TAG, "Exception writing camera capabilities", e);
+      temp.delete();
+    }
+    finally {
+      close(out);
+    }
+  }
+
+  private static int[] readInts(DataInputStream in) throws IOException {
+    int[] result=new int[in.readInt()];
+
+    for (int i=0; i < result.length; i++) {
+      result[i]=in.readInt();
+    }
+
+    return(result);
+  }
+
+  private static void writeInts(DataOutputStream out, int[] values)
+      throws IOException {
+    out.writeInt(values.length);
+
+    for (int value : values) {
+      out.writeInt(value);
+    }
+  }
+
+  private static List<String> readStrings(DataInputStream in)
+      throws IOException {
+    String[] result=new String[in.readInt()];
+
+    for (int i=0; i < result.length; i++) {
+      result[i]=in.readUTF();
+    }
+
+    return(Collections.unmodifiableList(Arrays.asList(result)));
+  }
+
+  private static void writeStrings(DataOutputStream out,
+                                   List<String> values) throws IOException {
+    out.writeInt(values.size());
+
+    for (String value : values) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static void close(java.io.Closeable stream) {
+    if (stream != null) {
+      try {
+        stream.close();
+      }
+      catch (IOException e) {
+        // nothing to do
+      }
+    }
+  }
+}
@@ -17,6 +17,8 @@ package com.commonsware.cwac.camera;
 import android.graphics.Bitmap;
 import android.hardware.Camera;
 import android.media.MediaRecorder;
+import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * Specification of a CameraHost, which is the primary way
@@ -62,6 +64,37 @@ public interface CameraHost extends Camera.AutoFocusCallback {
     }
   }
 
+  /**
+   * Where the CameraView's focus state machine stands, as
+   * reported to onFocusStateChanged().
+   */
+  public enum FocusState {
+    /**
+     * The focus is not being managed by the CameraView
+     */
+    IDLE,
+
+    /**
+     * Continuous auto-focus, over the whole frame
+     */
+    CONTINUOUS,
+
+    /**
+     * Auto-focus has been triggered and is underway
+     */
+    FOCUSING,
+
+    /**
+     * Focus succeeded and is locked
+     */
+    LOCKED,
+
+    /**
+     * Focus did not succeed; the lens stays where it ended up
+     */
+    FAILED
+  }
+
   /**
    * Implement this to configure the Camera.Parameters just
    * prior to taking a photo.
@@ -137,6 +170,19 @@ public interface CameraHost extends Camera.AutoFocusCallback {
    */
   void configureRecorderProfile(int cameraId, MediaRecorder recorder);
 
+  /**
+   * Called when a MediaRecorder set up by armRecording() is
+   * torn down without having recorded anything (e.g., it
+   * timed out), so you can clean up whatever you set up in
+   * configureRecorderOutput(), such as the empty output
+   * file.
+   * 
+   * @param cameraId
+   *          the camera that would have been used for
+   *          recording
+   */
+  void onRecordingDisarmed(int cameraId);
+
   /**
    * @return the ID of the camera that you want to use for
    *         previews and picture/video taking with the
@@ -248,6 +294,45 @@ public interface CameraHost extends Camera.AutoFocusCallback {
    */
   void saveImage(PictureTransaction xact, byte[] image, int imageOrientation);
 
+  /**
+   * Called on a background thread, before
+   * saveImage(PictureTransaction, byte[], int), to see if
+   * you would rather have the picture written straight to
+   * a stream of your choosing. If so, the JPEG is written
+   * to it, without the intermediate byte[] copies, and
+   * saveImage() is not called. The stream is closed for
+   * you.
+   *
+   * @return the stream to write the picture to, or null to
+   *         have saveImage() called instead
+   */
+  OutputStream openImageStream(PictureTransaction xact) throws IOException;
+
+  /**
+   * Called on a background thread once the picture has been
+   * written to, and the stream returned by
+   * openImageStream() has been closed. Errors are reported
+   * to handleException() instead.
+   *
+   * @param imageOrientation
+   *          orientation of the picture as written, as with
+   *          saveImage()
+   */
+  void onImageStreamClosed(PictureTransaction xact, int imageOrientation);
+
+  /**
+   * Called on a background thread for each Rendition
+   * requested on the PictureTransaction, largest first,
+   * before the picture itself is handed to saveImage() or
+   * openImageStream(), so the picture may not be saved yet.
+   *
+   * @param image
+   *          the encoded rendition, already rotated to the
+   *          same orientation as the picture
+   */
+  void saveRendition(PictureTransaction xact, Rendition rendition,
+                     byte[] image);
+
     /**
    * @return true if you want the camera to keep the preview
    *         disabled after taking a picture (e.g., you want
@@ -276,4 +361,54 @@ public interface CameraHost extends Camera.AutoFocusCallback {
   boolean useFullBleedPreview();
   
   float maxPictureCleanupHeapUsage();
+
+  /**
+   * @return the number of milliseconds to keep the camera
+   *         open, with the preview stopped, after the
+   *         CameraView is paused, so that a quick return to
+   *         the CameraView does not have to open and
+   *         configure the camera again, or 0 to release the
+   *         camera as soon as the CameraView is paused
+   */
+  int getCameraStandbyTimeout();
+
+  /**
+   * Called when the preview has been adjusted to a new
+   * display orientation. This will be called on a
+   * background thread.
+   * 
+   * @param displayOrientation
+   *          the new display orientation in degrees
+   * @param previewGapMillis
+   *          how long it took for the adjusted preview to
+   *          show, in milliseconds: until the preview widget
+   *          applied its rotation, or until the running
+   *          preview took the new display orientation
+   */
+  void onPreviewRotated(int displayOrientation, long previewGapMillis);
+
+  /**
+   * Called on the main application thread when the
+   * CameraView is paused, so you can wrap up anything that
+   * should not wait until the next picture (e.g., pending
+   * media scans).
+   */
+  void onCameraViewPaused();
+
+  /**
+   * @return a PictureStager to hold captured pictures off of
+   *         the heap while they wait to be processed, or
+   *         null to leave them on the heap
+   */
+  PictureStager getPictureStager();
+
+  /**
+   * Called on a background thread when the focus state
+   * changes, e.g., to show or hide a focus indicator.
+   *
+   * @param durationMillis
+   *          for LOCKED and FAILED, how long focusing took;
+   *          otherwise, 0
+   */
+  void onFocusStateChanged(FocusState state, long durationMillis);
 }
@@ -0,0 +1,132 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+/**
+ * Where the time goes when taking pictures with a
+ * CameraView, as a latency histogram per stage of the
+ * capture. Get one from getCameraMetrics() on CameraView.
+ */
+public interface CameraMetrics {
+  enum Stage {
+    /**
+     * From takePicture() until the camera thread picks up
+     * the request
+     */
+    QUEUE,
+
+    /**
+     * From the camera thread picking up the request until
+     * Camera.takePicture() is called (setting parameters,
+     * etc.)
+     */
+    PREPARE,
+
+    /**
+     * From Camera.takePicture() until the shutter callback;
+     * only measured if your CameraHost has a
+     * ShutterCallback
+     */
+    SHUTTER,
+
+    /**
+     * From the shutter callback (or Camera.takePicture(), if
+     * there is none) until the JPEG arrives
+     */
+    CAPTURE,
+
+    /**
+     * From the JPEG arriving until its cleanup starts
+     */
+    CLEANUP_WAIT,
+
+    /**
+     * Decoding the JPEG into a Bitmap, if that was needed
+     */
+    DECODE,
+
+    /**
+     * Rotating or mirroring the picture, if that was needed
+     */
+    ROTATE,
+
+    /**
+     * Re-encoding the picture, if that was needed
+     */
+    ENCODE,
+
+    /**
+     * Time spent in the CameraHost's saveImage() methods, or
+     * writing to openImageStream(). With SimpleCameraHost,
+     * saveImage() only hands the picture to its
+     * ImageSaveQueue, so this does not include writing the
+     * file; use onImageSaved() on the host for that.
+     */
+    SAVE,
+
+    /**
+     * The whole cleanup, including DECODE, ROTATE, ENCODE,
+     * and SAVE
+     */
+    CLEANUP,
+
+    /**
+     * From takePicture() until the cleanup is done
+     */
+    TOTAL
+  }
+
+  /**
+   * Receives the stage latencies of each picture, e.g., to
+   * send them to your own analytics.
+   */
+  interface Exporter {
+    /**
+     * Called on the cleanup thread after each picture has
+     * been cleaned up and saved.
+     *
+     * @param stageNanos
+     *          latency of each stage, in nanoseconds, indexed
+     *          by Stage.ordinal(), or -1 for stages that did
+     *          not apply to this picture
+     */
+    void onPictureMeasured(PictureTransaction xact, long[] stageNanos);
+  }
+
+  LatencyHistogram getHistogram(Stage stage);
+
+  /**
+   * @return how long auto-focus took, from the request until
+   *         the camera reported success or failure, whether it
+   *         was triggered by a tap, by a picture, or by
+   *         autoFocus()
+   */
+  LatencyHistogram getFocusHistogram();
+
+  /**
+   * @return the number of pictures measured since the last
+   *         reset()
+   */
+  long getPictureCount();
+
+  void reset();
+
+  /**
+   * @param exporter
+   *          where to send the latencies of each picture, or
+   *          null for nowhere
+   */
+  void setExporter(Exporter exporter);
+}
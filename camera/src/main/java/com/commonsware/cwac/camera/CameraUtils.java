@@ -14,10 +14,19 @@
 
 package com.commonsware.cwac.camera;
 
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.graphics.Rect;
 import android.hardware.Camera;
 import android.hardware.Camera.Size;
-import java.util.Collections;
-import java.util.Comparator;
+import android.os.Build;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.List;
 
 public class CameraUtils {
@@ -25,6 +34,11 @@ public class CameraUtils {
 
   private static final double ASPECT_TOLERANCE=0.1;
 
+  // decoded ARGB_8888 bitmap, plus the rotated/mirrored copy
+  // that ImageCleanupTask makes of it
+
+  private static final int CLEANUP_BYTES_PER_PIXEL=8;
+
   public static Camera.Size getOptimalPreviewSize(int displayOrientation,
                                                   int width,
                                                   int height,
@@ -82,33 +96,13 @@ public class CameraUtils {
                                                      int height,
                                                      Camera.Parameters parameters,
                                                      double closeEnough) {
-    double targetRatio=(double)width / height;
-    Camera.Size optimalSize=null;
-    double minDiff=Double.MAX_VALUE;
-
-    if (displayOrientation == 90 || displayOrientation == 270) {
-      targetRatio=(double)height / width;
-    }
-
-    List<Size> sizes=parameters.getSupportedPreviewSizes();
-
-    Collections.sort(sizes,
-                     Collections.reverseOrder(new SizeComparator()));
-
-    for (Size size : sizes) {
-      double ratio=(double)size.width / size.height;
-
-      if (Math.abs(ratio - targetRatio) < minDiff) {
-        optimalSize=size;
-        minDiff=Math.abs(ratio - targetRatio);
-      }
-
-      if (minDiff < closeEnough) {
-        break;
-      }
-    }
+    int index=
+        PreviewSizeSelector.forParameters(parameters)
+                           .selectIndex(displayOrientation, width, height,
+                                        closeEnough);
 
-    return(optimalSize);
+    return(index < 0 ? null
+        : parameters.getSupportedPreviewSizes().get(index));
   }
 
   public static Camera.Size getLargestPictureSize(CameraHost host,
@@ -151,6 +145,66 @@ public class CameraUtils {
     return(result);
   }
 
+  /**
+   * Picks the largest picture size whose decoded footprint
+   * in ImageCleanupTask fits in the share of the heap given
+   * by maxPictureCleanupHeapUsage(), and which is no bigger
+   * than the transaction's target resolution, if it has
+   * one. Sizes outside of the device profile's picture
+   * height range are skipped, unless that would skip them
+   * all. If nothing fits, the smallest size is returned.
+   */
+  public static Camera.Size getMemoryAwarePictureSize(Context ctxt,
+                                                      CameraHost host,
+                                                      PictureTransaction xact,
+                                                      Camera.Parameters parameters) {
+    long budget=
+        (long)(getHeapSize(ctxt) * (double)host.maxPictureCleanupHeapUsage());
+    Camera.Size result=
+        getMemoryAwarePictureSize(host, xact, parameters, budget, true);
+
+    if (result == null) {
+      result=getMemoryAwarePictureSize(host, xact, parameters, budget, false);
+    }
+
+    if (result == null) {
+      result=getSmallestPictureSize(parameters);
+    }
+
+    return(result);
+  }
+
+  private static Camera.Size getMemoryAwarePictureSize(CameraHost host,
+                                                       PictureTransaction xact,
+                                                       Camera.Parameters parameters,
+                                                       long budget,
+                                                       boolean enforceProfile) {
+    Camera.Size result=null;
+
+    for (Camera.Size size : parameters.getSupportedPictureSizes()) {
+      if (enforceProfile
+          && (size.height > host.getDeviceProfile().getMaxPictureHeight() || size.height < host.getDeviceProfile()
+                                                                                           .getMinPictureHeight())) {
+        continue;
+      }
+
+      if ((long)size.width * size.height * CLEANUP_BYTES_PER_PIXEL > budget) {
+        continue;
+      }
+
+      if (xact != null && !xact.fitsTargetResolution(size.width, size.height)) {
+        continue;
+      }
+
+      if (result == null
+          || size.width * size.height > result.width * result.height) {
+        result=size;
+      }
+    }
+
+    return(result);
+  }
+
   public static Camera.Size getSmallestPictureSize(Camera.Parameters parameters) {
     Camera.Size result=null;
 
@@ -171,6 +225,109 @@ public class CameraUtils {
     return(result);
   }
 
+  /**
+   * Quantizes a sensor orientation (as delivered to an
+   * OrientationEventListener) to 0, 90, 180, or 270
+   * degrees. The current value is kept until the
+   * orientation is more than 45 + hysteresis degrees away
+   * from it, so jitter around a 45 degree boundary does
+   * not cause flip-flopping.
+   * 
+   * @param orientation
+   *          the sensor orientation, 0-359, or -1 if unknown
+   * @param current
+   *          the current quantized orientation, or -1 if
+   *          there is none yet
+   * @param hysteresis
+   *          degrees past the 45 degree boundary needed to
+   *          switch
+   * @return the quantized orientation
+   */
+  public static int quantizeOrientation(int orientation, int current,
+                                        int hysteresis) {
+    if (orientation < 0) {
+      return(current);
+    }
+
+    if (current >= 0) {
+      int distance=Math.abs(orientation - current) % 360;
+
+      distance=Math.min(distance, 360 - distance);
+
+      if (distance <= 45 + hysteresis) {
+        return(current);
+      }
+    }
+
+    return(((orientation + 45) / 90 * 90) % 360);
+  }
+
+  /**
+   * Maps a point in a view showing the preview to a square
+   * area around it, in the -1000 to 1000 coordinates used by
+   * Camera.Area.
+   *
+   * @param preview
+   *          where the preview sits within the view, which
+   *          for a full-bleed preview extends past the view's
+   *          edges
+   * @param displayOrientation
+   *          how far the preview is rotated for display, in
+   *          degrees
+   * @param mirror
+   *          true if the preview is mirrored, as it is for
+   *          front-facing cameras
+   * @param size
+   *          width and height of the area, out of 2000
+   */
+  public static Rect previewToCameraArea(float x, float y, Rect preview,
+                                         int displayOrientation,
+                                         boolean mirror, int size) {
+    float viewX=(x - preview.left) * 2000f / preview.width() - 1000f;
+    float viewY=(y - preview.top) * 2000f / preview.height() - 1000f;
+    float cameraX;
+    float cameraY;
+
+    // undo the display rotation, then the mirroring
+
+    switch (displayOrientation) {
+      case 90:
+        cameraX=viewY;
+        cameraY=-viewX;
+        break;
+
+      case 180:
+        cameraX=-viewX;
+        cameraY=-viewY;
+        break;
+
+      case 270:
+        cameraX=-viewY;
+        cameraY=viewX;
+        break;
+
+      default:
+        cameraX=viewX;
+        cameraY=viewY;
+        break;
+    }
+
+    if (mirror) {
+      cameraX=-cameraX;
+    }
+
+    int half=size / 2;
+    int centerX=clamp(Math.round(cameraX), -1000 + half, 1000 - half);
+    int centerY=clamp(Math.round(cameraY), -1000 + half, 1000 - half);
+
+    return(new Rect(centerX - half, centerY - half, centerX + half,
+                    centerY + half));
+  }
+
+  private static int clamp(int value, int min, int max) {
+    return(Math.max(min, Math.min(max, value)));
+  }
+
   public static String findBestFlashModeMatch(Camera.Parameters params,
                                               String... modes) {
     String match=null;
@@ -189,21 +346,41 @@ public class CameraUtils {
     return(match);
   }
 
-  private static class SizeComparator implements
-      Comparator<Camera.Size> {
-    @Override
-    public int compare(Size lhs, Size rhs) {
-      int left=lhs.width * lhs.height;
-      int right=rhs.width * rhs.height;
-
-      if (left < right) {
-        return(-1);
-      }
-      else if (left > right) {
-        return(1);
+  /**
+   * @return the size of the heap available to this process,
+   *         in bytes, taking android:largeHeap into account
+   */
+  @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+  public static int getHeapSize(Context ctxt) {
+    ActivityManager am=
+        (ActivityManager)ctxt.getSystemService(Context.ACTIVITY_SERVICE);
+    int memoryClass=am.getMemoryClass();
+
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+      if ((ctxt.getApplicationInfo().flags & ApplicationInfo.FLAG_LARGE_HEAP) != 0) {
+        memoryClass=am.getLargeMemoryClass();
       }
+    }
 
-      return(0);
+    return(memoryClass * 1048576); // MB * bytes in MB
+  }
+
+  /**
+   * Writes the whole array in one go, through the
+   * FileChannel if this is a FileOutputStream.
+   */
+  static void writeFully(OutputStream out, byte[] data)
+    throws IOException {
+    if (out instanceof FileOutputStream) {
+      FileChannel channel=((FileOutputStream)out).getChannel();
+      ByteBuffer buffer=ByteBuffer.wrap(data);
+
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+    else {
+      out.write(data);
     }
   }
 }
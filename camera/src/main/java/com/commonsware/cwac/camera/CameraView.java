@@ -17,21 +17,22 @@ package com.commonsware.cwac.camera;
 
 import android.annotation.TargetApi;
 import android.app.Activity;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.pm.ActivityInfo;
+import android.content.res.Configuration;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
 import android.hardware.Camera;
 import android.hardware.Camera.AutoFocusCallback;
-import android.hardware.Camera.CameraInfo;
-import android.hardware.SensorManager;
 import android.media.MediaRecorder;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.AttributeSet;
-import android.util.DisplayMetrics;
 import android.util.Log;
-import android.view.Display;
-import android.view.OrientationEventListener;
+import android.view.MotionEvent;
 import android.view.Surface;
 import android.view.View;
 import android.view.ViewGroup;
@@ -40,11 +41,23 @@ import android.view.WindowManager;
 import com.commonsware.cwac.camera.CameraHost.FailureReason;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class CameraView extends ViewGroup implements AutoFocusCallback {
 
-    private static final int[] ROTATION_DEGREES = {0, 90, 180, 270};
-    private static final int UPDATE_RATE_US = 200 * 1000;
+    public static final long DEFAULT_ARM_TIMEOUT_MS = 10000;
+    public static final long DEFAULT_FOCUS_LOCK_MS = 3000;
+    private static final int FOCUS_AREA_SIZE = 200;
+    private static final int METERING_AREA_SIZE = 300;
+    private static final long ROTATION_SETTLE_MS = 1000;
+    private static final long ROTATION_CHECK_INTERVAL_MS = 100;
+    private static final int ENCODER_CALLBACK_BUFFERS = 3;
+    private static final int FOCUS_TIMEOUT_FACTOR = 3;
+    private static final long MIN_FOCUS_TIMEOUT_MS = 1000;
 
     static final String TAG = "CWAC-Camera";
     private PreviewStrategy previewStrategy;
@@ -52,34 +65,73 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
     private Camera camera = null;
     private boolean inPreview = false;
     private CameraHost host = null;
-    private OnOrientationChange onOrientationChange = null;
+    private OrientationMonitor orientationMonitor = null;
     private int displayOrientation = -1;
+    private int cameraDisplayOrientation = -1;
     private int outputOrientation = -1;
     private int cameraId = -1;
+    private CameraCapabilities capabilities = null;
+    private volatile int expectedPreviewWidth = 0;
+    private volatile int expectedPreviewHeight = 0;
+    private final CaptureMetrics metrics = new CaptureMetrics();
     private MediaRecorder recorder = null;
+    private final Object recorderLock = new Object();
+    private MediaRecorder armedRecorder = null;
+    private int armedOrientation = -1;
+    private volatile PreviewEncoder previewEncoder = null;
+    private final ConcurrentLinkedQueue<PictureTransaction> pendingSnapshots =
+            new ConcurrentLinkedQueue<PictureTransaction>();
     private Camera.Parameters previewParams = null;
     private boolean isDetectingFaces = false;
     private boolean isAutoFocusing = false;
+    private final ArrayList<PictureTransaction> focusQueue = new ArrayList<PictureTransaction>();
+    private volatile long lastFocusTime = 0;
+    private final ZoomController zoomController = new ZoomController(this, handler);
+    private PinchZoomHandler pinchZoom = null;
+    private volatile FaceTracker faceTracker = null;
+    private volatile CameraHost.FocusState focusState = CameraHost.FocusState.IDLE;
+    private volatile long focusLockMillis = DEFAULT_FOCUS_LOCK_MS;
+    private String restoreFocusMode = null;
+    private long focusStartNanos = 0;
+    private long previewStartTime = 0;
+    private DeviceCalibrator calibrator = null;
+    private CalibratedDeviceProfile calibratedProfile = null;
     private Camera.PreviewCallback previewCallback;
     private static HandlerThread thread;
     private static Handler handler;
+    private static HandlerThread cleanupThread;
+    private static Handler cleanupHandler;
 
-    private OrientationEventListener orientationEventListener;
+    private volatile boolean tracksPictureOrientation = false;
+    private volatile boolean tracksDisplayRotation = false;
+    private volatile int pictureOrientation = -1;
     private int lastRotation;
+    private long rotationCheckDeadline = 0;
     private WindowManager windowManager;
 
     private boolean isOrientationLocked = false;
     private boolean isOrientationHardLocked = false;
 
+    private boolean isInStandby = false;
+    // weak, so a CameraView in standby does not keep its activity
+    // around; only touched on the camera thread
+    private static WeakReference<CameraView> standbyView = null;
+
     static {
         thread = new HandlerThread("CWAC_CAMERA", HandlerThread.MAX_PRIORITY);
         thread.start();
         handler = new Handler(thread.getLooper());
+
+        // pictures wait here, staged, while earlier ones are
+        // cleaned up, rather than on the camera thread
+        cleanupThread = new HandlerThread("CWAC_CAMERA_CLEANUP");
+        cleanupThread.start();
+        cleanupHandler = new Handler(cleanupThread.getLooper());
     }
 
     public CameraView(Context context) {
         super(context);
-        onOrientationChange = new OnOrientationChange(context);
+        orientationMonitor = OrientationMonitor.getInstance(context);
     }
 
     public CameraView(Context context, AttributeSet attrs) {
@@ -88,7 +140,7 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
 
     public CameraView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
-        onOrientationChange = new OnOrientationChange(context);
+        orientationMonitor = OrientationMonitor.getInstance(context);
 
         if (context instanceof CameraHostProvider) {
             setCameraHost(((CameraHostProvider) context).getCameraHost());
@@ -109,11 +161,33 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
     public void setCameraHost(CameraHost host) {
         this.host = host;
 
-        if (host.getDeviceProfile().useTextureView()) {
+        DeviceProfile profile = host.getDeviceProfile();
+
+        if (profile.useTextureView()) {
             previewStrategy = new TexturePreviewStrategy(this);
         } else {
             previewStrategy = new SurfacePreviewStrategy(this);
         }
+
+        // a host with a profile of its own still gets calibrated
+        // timings when scheduling pictures
+
+        if (profile instanceof CalibratedDeviceProfile) {
+            calibratedProfile = (CalibratedDeviceProfile) profile;
+        } else {
+            calibratedProfile = new CalibratedDeviceProfile(getContext(), profile);
+        }
+
+        final CalibratedDeviceProfile toLoad = calibratedProfile;
+        final Context app = getContext().getApplicationContext();
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                toLoad.load();
+                CameraCapabilities.preload(app);
+            }
+        });
     }
 
     public synchronized Camera.Parameters getCameraParameters() {
@@ -143,6 +217,8 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
      * @param parameters
      */
     protected void setCameraParametersSync(Camera.Parameters parameters) {
+        disarmIfArmed();
+
         try {
             if (camera != null && parameters != null) {
 
@@ -161,41 +237,27 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
      *
      * @param camera
      */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
     public void onCameraOpen(Camera camera) throws RuntimeException {
         if (getActivity().getRequestedOrientation() != ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED
                 && !isOrientationHardLocked) {
-            onOrientationChange.enable();
+            setTracksPictureOrientation(true);
         }
 
         setCameraDisplayOrientation();
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH
-                && getCameraHost() instanceof Camera.FaceDetectionListener) {
-            camera.setFaceDetectionListener((Camera.FaceDetectionListener) getCameraHost());
+        setFaceDetectionListenerSync();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            camera.setAutoFocusMoveCallback(new FocusMoveCallback());
         }
 
         setPreviewCallback(previewCallback);
 
-        if (orientationEventListener == null) {
+        if (windowManager == null) {
             windowManager = (WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE);
-            orientationEventListener = new OrientationEventListener(getContext(),
-                    SensorManager.SENSOR_DELAY_NORMAL) {
-                @Override
-                public void onOrientationChanged(int orientation) {
-
-                    Display display = windowManager.getDefaultDisplay();
-                    int rotation = display.getRotation();
-                    if (rotation != lastRotation) {
-                        setCameraDisplayOrientation();
-
-                        lastRotation = rotation;
-                    }
-                }
-            };
-        }
-        if (orientationEventListener.canDetectOrientation()) {
-            orientationEventListener.enable();
         }
+        setTracksDisplayRotation(true);
 
         if (this.isOrientationLocked) {
             lockOrientation();
@@ -204,18 +266,39 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
 
     @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
     public void onResume() {
-        onOrientationChange.resetOrientation();
+        pictureOrientation = -1;
         ViewGroup parent = (ViewGroup) previewStrategy.getWidget().getParent();
         if (parent != null) {
             parent.removeAllViews();
         }
         addView(previewStrategy.getWidget());
 
+        // the size to negotiate the preview for, read here on
+        // the main application thread
+
+        final int width = getWidth();
+        final int height = getHeight();
 
         handler.post(new Runnable() {
             @Override
             public void run() {
-                if (camera == null) {
+                // a host that switched cameras while paused gets
+                // the one it asks for, not the one kept in standby
+
+                if (camera != null && isInStandby && !isStandbyCameraWanted()) {
+                    releaseStandbyCameraSync();
+                }
+
+                if (camera != null && isInStandby) {
+                    leaveStandbySync();
+                    onCameraOpen(camera);
+                } else if (camera == null) {
+                    CameraView other = (standbyView == null ? null : standbyView.get());
+
+                    if (other != null) {
+                        other.releaseStandbyCameraSync();
+                    }
+
                     try {
                         cameraId = getCameraHost().getCameraId();
                     } catch (RuntimeException e) {
@@ -224,8 +307,12 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
 
                     if (cameraId >= 0) {
                         try {
+                            negotiatePreviewSizeSync(width, height);
                             camera = Camera.open(cameraId);
-                            getCameraParameters(); //sets previewParams
+                            camera.setErrorCallback(standbyErrorCallback);
+                            capabilities = CameraCapabilities.update(getContext(),
+                                    cameraId, getCameraParameters()); //sets previewParams
+                            confirmPreviewSizeSync(width, height);
                             onCameraOpen(camera);
                         } catch (Exception e) {
                             getCameraHost().onCameraFail(FailureReason.UNKNOWN);
@@ -239,14 +326,32 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
     }
 
     public void onPause() {
-        previewDestroyed();
+        disarmRecording();
+        stopPreviewRecording();
+
+        int standbyTimeout = getCameraHost().getCameraStandbyTimeout();
+
+        if (standbyTimeout > 0) {
+            enterStandby(standbyTimeout);
+        } else {
+            previewDestroyed();
+        }
+
         if (previewStrategy.getWidget() != null) {
             removeView(previewStrategy.getWidget());
         }
-        this.onOrientationChange.disable();
-        if (orientationEventListener != null) {
-            orientationEventListener.disable();
-        }
+        setTracksPictureOrientation(false);
+        setTracksDisplayRotation(false);
+        getCameraHost().onCameraViewPaused();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+
+        // a detached view will not leave standby, so give up its
+        // camera now rather than when the standby timeout expires
+        handler.post(releaseStandbyCamera);
     }
 
     // based on CameraPreview.java from ApiDemos
@@ -264,28 +369,7 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
                 @Override
                 public void run() {
                     if (camera != null && getCameraParameters() != null) {
-                        Camera.Size newSize = null;
-
-                        try {
-                            if (getCameraHost().getRecordingHint() != CameraHost.RecordingHint.STILL_ONLY) {
-                                newSize =
-                                        getCameraHost().getPreferredPreviewSizeForVideo(getDisplayOrientation(),
-                                                width,
-                                                height,
-                                                getCameraParameters(),
-                                                null);
-                            }
-
-                            if (newSize == null || newSize.width * newSize.height < 65536) {
-                                newSize =
-                                        getCameraHost().getPreviewSize(getDisplayOrientation(),
-                                                width, height,
-                                                getCameraParameters());
-                            }
-                        } catch (Exception e) {
-                            android.util.Log.v(getClass().getSimpleName(),
-                                    "onMeasure(). Could not work with camera parameters.");
-                        }
+                        Camera.Size newSize = choosePreviewSizeSync(width, height);
 
                         if (newSize != null) {
                             if (previewSize == null) {
@@ -331,14 +415,22 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
 
             // handle orientation
 
-            if (previewSize != null && previewSize.height > 0 && previewSize.width > 0) {
+            int sizeWidth = expectedPreviewWidth;
+            int sizeHeight = expectedPreviewHeight;
+
+            if (previewSize != null) {
+                sizeWidth = previewSize.width;
+                sizeHeight = previewSize.height;
+            }
+
+            if (sizeHeight > 0 && sizeWidth > 0) {
                 if (getDisplayOrientation() == 90
                         || getDisplayOrientation() == 270) {
-                    previewWidth = previewSize.height;
-                    previewHeight = previewSize.width;
+                    previewWidth = sizeHeight;
+                    previewHeight = sizeWidth;
                 } else {
-                    previewWidth = previewSize.width;
-                    previewHeight = previewSize.height;
+                    previewWidth = sizeWidth;
+                    previewHeight = sizeHeight;
                 }
             }
 
@@ -362,6 +454,8 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
                 child.layout(0, (height - scaledChildHeight) / 2, width,
                         (height + scaledChildHeight) / 2);
             }
+
+            updateFaceTrackerGeometry();
         }
     }
 
@@ -403,7 +497,7 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
             public void run() {
                 setCameraDisplayOrientationAsync();
                 if (!isOrientationHardLocked) {
-                    onOrientationChange.enable();
+                    setTracksPictureOrientation(true);
                 } else {
                     setPictureOrientationAsync();
                 }
@@ -415,7 +509,7 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
         this.isOrientationLocked = false;
         this.isOrientationHardLocked = false;
         getActivity().setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED);
-        onOrientationChange.disable();
+        setTracksPictureOrientation(false);
 
         post(new Runnable() {
             @Override
@@ -439,6 +533,7 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
     }
 
     public void takePicture(final PictureTransaction xact) {
+        xact.mark(PictureTransaction.MARK_REQUESTED);
         takePictureAsync(xact);
     }
 
@@ -446,12 +541,21 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
         handler.post(new Runnable() {
             @Override
             public void run() {
+                xact.mark(PictureTransaction.MARK_DEQUEUED);
+                disarmRecording();
+
                 if (inPreview) {
+                    xact.cameraView = CameraView.this;
+                    xact.metrics = metrics;
+
+                    if (!isAutoFocusing && xact.maxFocusAge >= 0
+                            && SystemClock.elapsedRealtime() - lastFocusTime > xact.maxFocusAge) {
+                        autoFocusSync();
+                    }
+
                     if (isAutoFocusing) {
-                        Log.e(getClass().getSimpleName(),
-                                "Camera cannot take a picture while auto-focusing");
+                        queueBehindFocus(xact);
                     } else {
-                        xact.cameraView = CameraView.this;
                         tryTakePicture(xact);
                     }
                 } else {
@@ -462,7 +566,85 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
         });
     }
 
-    private void tryTakePicture(PictureTransaction xact) {
+    /**
+     * Run only in executor
+     */
+    private void queueBehindFocus(final PictureTransaction xact) {
+        focusQueue.add(xact);
+
+        // stop waiting on a focus attempt that is taking too long,
+        // and shoot anyway
+
+        xact.focusTimeoutTask = new Runnable() {
+            @Override
+            public void run() {
+                if (focusQueue.contains(xact)) {
+                    if (isAutoFocusing) {
+                        cancelAutoFocusSync();
+                    }
+
+                    drainFocusQueue();
+                }
+            }
+        };
+        handler.postDelayed(xact.focusTimeoutTask, getFocusTimeout(xact));
+    }
+
+    /**
+     * Run only in executor. The transaction's own timeout, if it has
+     * one, or else a few times how long focusing takes on this device,
+     * if that has been measured.
+     */
+    private long getFocusTimeout(PictureTransaction xact) {
+        if (xact.focusTimeout >= 0) {
+            return (xact.focusTimeout);
+        }
+
+        int focusTime = calibratedProfile.getFocusTime();
+
+        if (focusTime > 0) {
+            return (Math.min(PictureTransaction.DEFAULT_FOCUS_TIMEOUT_MS,
+                    Math.max(MIN_FOCUS_TIMEOUT_MS, focusTime * FOCUS_TIMEOUT_FACTOR)));
+        }
+
+        return (PictureTransaction.DEFAULT_FOCUS_TIMEOUT_MS);
+    }
+
+    /**
+     * Run only in executor. Takes the oldest picture that was waiting
+     * on focus, if the camera is ready for it. Any others keep waiting
+     * until the preview restarts.
+     */
+    private void drainFocusQueue() {
+        if (focusQueue.isEmpty() || isAutoFocusing || !inPreview
+                || camera == null) {
+            return;
+        }
+
+        PictureTransaction xact = focusQueue.remove(0);
+
+        handler.removeCallbacks(xact.focusTimeoutTask);
+        xact.focusTimeoutTask = null;
+        tryTakePicture(xact);
+    }
+
+    /**
+     * Run only in executor
+     */
+    private void clearFocusQueue() {
+        for (PictureTransaction xact : focusQueue) {
+            handler.removeCallbacks(xact.focusTimeoutTask);
+            xact.focusTimeoutTask = null;
+        }
+
+        if (!focusQueue.isEmpty()) {
+            Log.e(getClass().getSimpleName(),
+                    "Camera closed before queued pictures could be taken");
+            focusQueue.clear();
+        }
+    }
+
+    private void tryTakePicture(final PictureTransaction xact) {
         if (camera != null) {
             try {
                 inPreview = false;
@@ -471,13 +653,39 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
 
                 Camera.Parameters pictureParams = camera.getParameters();
 
-                if (!onOrientationChange.isEnabled()) {
+                if (tracksPictureOrientation && pictureOrientation >= 0) {
+                    pictureParams.setRotation(outputOrientation);
+                } else {
                     setCameraPictureOrientation(pictureParams);
                 }
 
+                Camera.Size pictureSize = xact.host.getPictureSize(xact, pictureParams);
+
+                if (pictureSize != null) {
+                    pictureParams.setPictureSize(pictureSize.width, pictureSize.height);
+                }
+
                 camera.setParameters(xact.host.adjustPictureParameters(xact, pictureParams));
-                camera.takePicture(xact.host.getShutterCallback(), null,
-                        new PictureTransactionCallback(xact));
+
+                long delay = getPictureDelay();
+
+                if (delay > 0) {
+                    final Camera target = camera;
+
+                    handler.postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (camera == target) {
+                                shootSync(xact);
+                            } else {
+                                Log.e(CameraView.this.getClass().getSimpleName(),
+                                        "Camera closed before a delayed picture could be taken");
+                            }
+                        }
+                    }, delay);
+                } else {
+                    shootSync(xact);
+                }
             } catch (Exception e) {
                 Log.e(getClass().getSimpleName(),
                         "Exception taking a picture", e);
@@ -488,207 +696,1019 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
         }
     }
 
-    public boolean isRecording() {
-        return (recorder != null);
-    }
-
-    public void record() throws Exception {
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
-            throw new UnsupportedOperationException(
-                    "Video recording supported only on API Level 11+");
-        }
-
-        if (displayOrientation != 0 && displayOrientation != 180) {
-            throw new UnsupportedOperationException(
-                    "Video recording supported only in landscape");
-        }
-
-        Camera.Parameters pictureParams = camera.getParameters();
-
-        setCameraPictureOrientation(pictureParams);
-        camera.setParameters(pictureParams);
+    /**
+     * Run only in executor
+     */
+    private void shootSync(PictureTransaction xact) {
+        try {
+            // the transaction relays to the host's callback; only
+            // pass one if the host has one, as having a shutter
+            // callback can change whether a shutter sound plays
 
-        stopPreview();
-        camera.unlock();
+            xact.mark(PictureTransaction.MARK_TAKE_PICTURE);
+            camera.takePicture((xact.host.getShutterCallback() == null ? null : xact), null,
+                    new PictureTransactionCallback(xact, false));
+        } catch (RuntimeException e) {
+            Log.e(getClass().getSimpleName(),
+                    "Exception taking a picture", e);
+            // TODO get this out to library clients
 
-        try {
-            recorder = new MediaRecorder();
-            recorder.setCamera(camera);
-            getCameraHost().configureRecorderAudio(cameraId, recorder);
-            recorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
-            getCameraHost().configureRecorderProfile(cameraId, recorder);
-            getCameraHost().configureRecorderOutput(cameraId, recorder);
-            recorder.setOrientationHint(outputOrientation);
-            previewStrategy.attach(recorder);
-            recorder.prepare();
-            recorder.start();
-        } catch (IOException e) {
-            recorder.release();
-            recorder = null;
-            throw e;
+            inPreview = true;
         }
     }
 
-    public void stopRecording() throws IOException {
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
-            throw new UnsupportedOperationException(
-                    "Video recording supported only on API Level 11+");
-        }
+    /**
+     * Run only in executor. How long to wait, once the picture
+     * parameters are set, before taking the picture: the device
+     * profile's picture delay, or whatever is left of the time the
+     * preview needs to get going again, whichever is longer.
+     */
+    private long getPictureDelay() {
+        long delay = calibratedProfile.getPictureDelay();
+        int restartTime = calibratedProfile.getPreviewRestartTime();
 
-        MediaRecorder tempRecorder = recorder;
+        if (restartTime > 0) {
+            delay = Math.max(delay,
+                    previewStartTime + restartTime - SystemClock.elapsedRealtime());
+        }
 
-        recorder = null;
-        tempRecorder.stop();
-        tempRecorder.release();
-        camera.reconnect();
+        return (delay);
     }
 
-    public void autoFocus() {
+    /**
+     * Measures this device's camera with a DeviceCalibrator, taking a
+     * few pictures that are not handed to the CameraHost. The preview
+     * must be running, with nothing being recorded. The results are
+     * used by the CalibratedDeviceProfile, from then on.
+     *
+     * @param calibrator configured with a listener for the results
+     */
+    public void calibrate(final DeviceCalibrator calibrator) {
         handler.post(new Runnable() {
             @Override
             public void run() {
-                if (inPreview && camera != null) {
-                    try {
-                        camera.autoFocus(CameraView.this);
-                        isAutoFocusing = true;
-                    } catch (RuntimeException e) {
-                        Log.e(getClass().getSimpleName(), "Could not auto focus?", e);
-                    }
-
-                }
+                calibrateSync(calibrator);
             }
         });
     }
 
-    public void cancelAutoFocus() {
-        handler.post(new Runnable() {
-            @Override
-            public void run() {
-                if (camera != null) {
-                    try {
-                        isAutoFocusing = false;
-                        camera.cancelAutoFocus();
-                    } catch (RuntimeException e) {
-                        Log.e(getClass().getSimpleName(), "Could not cancel auto focus?", e);
-                    }
-                }
-            }
-        });
-    }
+    /**
+     * Run only in executor
+     */
+    private void calibrateSync(DeviceCalibrator calibrator) {
+        disarmIfArmed();
 
-    public boolean isAutoFocusAvailable() {
-        return (inPreview);
+        if (camera == null || !inPreview || recorder != null
+                || previewEncoder != null || isAutoFocusing
+                || !focusQueue.isEmpty() || this.calibrator != null) {
+            calibrator.reject();
+
+            return;
+        }
+
+        // nothing else uses the camera until endCalibrationSync()
+
+        inPreview = false;
+        handler.removeCallbacks(resetFocusTask);
+        this.calibrator = calibrator;
+        calibrator.start(this, camera, calibratedProfile);
     }
 
-    @Override
-    public void onAutoFocus(boolean success, Camera camera) {
-        isAutoFocusing = false;
+    /**
+     * Run only in executor. Puts back the parameters and preview
+     * callback that calibration replaced.
+     */
+    void endCalibrationSync(DeviceCalibrator calibrator, boolean isPreviewRunning) {
+        if (this.calibrator != calibrator) {
+            return;
+        }
 
-        if (getCameraHost() instanceof AutoFocusCallback) {
-            getCameraHost().onAutoFocus(success, camera);
+        this.calibrator = null;
+        setCameraParametersSync(getCameraParameters());
+        setPreviewCallbackSync(previewCallback);
+
+        if (isPreviewRunning) {
+            inPreview = true;
+            getCameraHost().autoFocusAvailable();
+        } else {
+            startPreviewSync();
         }
     }
 
-    public String getFlashMode() {
-        return (previewParams.getFlashMode());
-    }
+    /**
+     * Takes a picture while video is being recorded, without
+     * interrupting the recording. When recording via record(), this
+     * needs a camera that reports isVideoSnapshotSupported(). When
+     * recording via startPreviewRecording(), the next preview frame is
+     * used, so the picture is the size of the preview. Either way, the
+     * picture goes through the CameraHost like any other.
+     *
+     * @param xact PictureTransaction with configuration data for the
+     *             picture to be taken
+     */
+    public void takeVideoSnapshot(final PictureTransaction xact) {
+        xact.mark(PictureTransaction.MARK_REQUESTED);
 
-    public void setFlashMode(final String mode) {
         handler.post(new Runnable() {
             @Override
             public void run() {
-                if (camera != null) {
-                    Camera.Parameters params = getCameraParameters();
-                    params.setFlashMode(mode);
-                    setCameraParametersSync(params);
-                }
+                xact.mark(PictureTransaction.MARK_DEQUEUED);
+                xact.cameraView = CameraView.this;
+                xact.metrics = metrics;
+                takeVideoSnapshotSync(xact);
             }
         });
     }
 
-    public ZoomTransaction zoomTo(int level) {
-        if (camera == null) {
-            throw new IllegalStateException(
-                    "Yes, we have no camera, we have no camera today");
-        } else {
-            Camera.Parameters params = getCameraParameters();
-
-            if (level >= 0 && level <= params.getMaxZoom()) {
-                return (new ZoomTransaction(camera, level));
-            } else {
-                throw new IllegalArgumentException(
-                        String.format("Invalid zoom level: %d",
-                                level));
+    /**
+     * Run only in executor
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void takeVideoSnapshotSync(PictureTransaction xact) {
+        if (previewEncoder != null) {
+            // picked up by encodingCallback with the next frame
+
+            xact.mark(PictureTransaction.MARK_TAKE_PICTURE);
+            pendingSnapshots.add(xact);
+        } else if (recorder != null && camera != null
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH
+                && camera.getParameters().isVideoSnapshotSupported()) {
+            try {
+                xact.mark(PictureTransaction.MARK_TAKE_PICTURE);
+                camera.takePicture(null, null,
+                        new PictureTransactionCallback(xact, true));
+            } catch (RuntimeException e) {
+                getCameraHost().handleException(e);
             }
+        } else {
+            getCameraHost().handleException(new UnsupportedOperationException(
+                    "Snapshots need a recording in progress that supports them"));
         }
     }
 
-    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
-    public void startFaceDetection() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH
-                && camera != null && !isDetectingFaces
-                && getCameraParameters().getMaxNumDetectedFaces() > 0) {
-            camera.startFaceDetection();
-            isDetectingFaces = true;
-        }
+    public boolean isRecording() {
+        return (recorder != null);
     }
 
-    public void stopFaceDetection() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH
-                && camera != null && isDetectingFaces) {
-            camera.stopFaceDetection();
-            isDetectingFaces = false;
-        }
+    /**
+     * Sets up the MediaRecorder in the background, while the preview
+     * keeps running, so a later call to record() only has to start it.
+     * Anything else that uses the camera (taking a picture, focusing,
+     * zooming, changing parameters) or pausing the CameraView cancels
+     * this, as does not calling record() within DEFAULT_ARM_TIMEOUT_MS.
+     */
+    public void armRecording() {
+        armRecording(DEFAULT_ARM_TIMEOUT_MS);
     }
 
-    public void setPreviewCallback(final Camera.PreviewCallback callback) {
-        previewCallback = callback;
+    /**
+     * Sets up the MediaRecorder in the background, while the preview
+     * keeps running, so a later call to record() only has to start it.
+     * Anything else that uses the camera (taking a picture, focusing,
+     * zooming, changing parameters) or pausing the CameraView cancels
+     * this, as does not calling record() within the timeout.
+     *
+     * @param timeoutMillis how long to stay armed
+     */
+    public void armRecording(final long timeoutMillis) {
+        checkRecordingSupported();
 
         handler.post(new Runnable() {
             @Override
             public void run() {
-                setPreviewCallbackSync(callback);
+                armRecordingSync(timeoutMillis);
             }
         });
     }
 
-    public void addPreviewCallbackBuffer(final byte[] buffer) {
-        handler.post(new Runnable() {
-            @Override
-            public void run() {
-                addPreviewCallbackBufferSync(buffer);
-            }
-        });
+    public boolean isRecordingArmed() {
+        synchronized (recorderLock) {
+            return (armedRecorder != null);
+        }
     }
 
-    protected void setPreviewCallbackSync(Camera.PreviewCallback callback) {
-        previewCallback = callback;
+    /**
+     * Tears down a MediaRecorder set up by armRecording(), if there is
+     * one, without recording anything.
+     */
+    public void disarmRecording() {
+        handler.removeCallbacks(disarmTask);
 
-        if (camera != null) {
-            try {
-                if (getCameraHost().getDeviceProfile().isCustomRom()) {
-                    camera.setPreviewCallback(previewCallback);
-                } else {
-                    camera.setPreviewCallbackWithBuffer(previewCallback);
-                }
-            } catch (RuntimeException e) {
+        synchronized (recorderLock) {
+            disarmRecordingLocked();
+        }
+    }
+
+    public void record() throws Exception {
+        checkRecordingSupported();
+
+        synchronized (recorderLock) {
+            if (armedRecorder != null) {
+                handler.removeCallbacks(disarmTask);
+
+                if (armedOrientation == outputOrientation) {
+                    recorder = armedRecorder;
+                    armedRecorder = null;
+
+                    try {
+                        recorder.start();
+                    } catch (RuntimeException e) {
+                        recorder.release();
+                        recorder = null;
+                        camera.lock();
+                        throw e;
+                    }
+
+                    return;
+                }
+
+                // the device was turned since arming, so the
+                // orientation hint is stale
+
+                disarmRecordingLocked();
+            }
+
+            Camera.Parameters pictureParams = camera.getParameters();
+
+            setCameraPictureOrientation(pictureParams);
+            camera.setParameters(pictureParams);
+
+            stopPreview();
+            camera.unlock();
+
+            try {
+                recorder = createRecorder();
+                recorder.start();
+            } catch (IOException e) {
+                if (recorder != null) {
+                    recorder.release();
+                    recorder = null;
+                }
+
+                throw e;
+            }
+        }
+    }
+
+    private void checkRecordingSupported() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            throw new UnsupportedOperationException(
+                    "Video recording supported only on API Level 11+");
+        }
+
+        if (displayOrientation != 0 && displayOrientation != 180) {
+            throw new UnsupportedOperationException(
+                    "Video recording supported only in landscape");
+        }
+    }
+
+    private MediaRecorder createRecorder() throws IOException {
+        MediaRecorder result = new MediaRecorder();
+
+        try {
+            result.setCamera(camera);
+            getCameraHost().configureRecorderAudio(cameraId, result);
+            result.setVideoSource(MediaRecorder.VideoSource.CAMERA);
+            getCameraHost().configureRecorderProfile(cameraId, result);
+            getCameraHost().configureRecorderOutput(cameraId, result);
+            result.setOrientationHint(outputOrientation);
+            previewStrategy.attach(result);
+            result.prepare();
+        } catch (IOException e) {
+            result.release();
+            throw e;
+        } catch (RuntimeException e) {
+            result.release();
+            throw e;
+        }
+
+        return (result);
+    }
+
+    /**
+     * Run only in executor
+     */
+    private void armRecordingSync(long timeoutMillis) {
+        synchronized (recorderLock) {
+            if (camera == null || !inPreview || recorder != null
+                    || armedRecorder != null) {
+                return;
+            }
+
+            Camera.Parameters pictureParams = camera.getParameters();
+
+            setCameraPictureOrientation(pictureParams);
+            camera.setParameters(pictureParams);
+
+            // the preview keeps running while the camera is unlocked;
+            // every other use of the camera goes through
+            // disarmIfArmed() first, to get it back
+
+            camera.unlock();
+
+            try {
+                armedRecorder = createRecorder();
+                armedOrientation = outputOrientation;
+                handler.postDelayed(disarmTask, timeoutMillis);
+            } catch (Exception e) {
+                Log.e(getClass().getSimpleName(), "Could not arm recording", e);
+                camera.lock();
+            }
+        }
+    }
+
+    /**
+     * An armed MediaRecorder has the camera unlocked, so anything else
+     * that needs the camera disarms it first, as taking a picture does.
+     */
+    void disarmIfArmed() {
+        if (isRecordingArmed()) {
+            disarmRecording();
+        }
+    }
+
+    private void disarmRecordingLocked() {
+        if (armedRecorder != null) {
+            armedRecorder.release();
+            armedRecorder = null;
+
+            if (camera != null) {
+                camera.lock();
+            }
+
+            getCameraHost().onRecordingDisarmed(cameraId);
+        }
+    }
+
+    private final Runnable disarmTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (recorderLock) {
+                disarmRecordingLocked();
+            }
+        }
+    };
+
+    public void stopRecording() throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            throw new UnsupportedOperationException(
+                    "Video recording supported only on API Level 11+");
+        }
+
+        MediaRecorder tempRecorder = recorder;
+
+        recorder = null;
+        tempRecorder.stop();
+        tempRecorder.release();
+        camera.reconnect();
+    }
+
+    public void autoFocus() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                autoFocusSync();
+            }
+        });
+    }
+
+    /**
+     * Run only in executor
+     */
+    private void autoFocusSync() {
+        disarmIfArmed();
+
+        if (inPreview && camera != null) {
+            try {
+                focusStartNanos = System.nanoTime();
+                camera.autoFocus(CameraView.this);
+                isAutoFocusing = true;
+            } catch (RuntimeException e) {
+                Log.e(getClass().getSimpleName(), "Could not auto focus?", e);
+            }
+        }
+    }
+
+    public void cancelAutoFocus() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                cancelAutoFocusSync();
+                drainFocusQueue();
+            }
+        });
+    }
+
+    /**
+     * Run only in executor
+     */
+    private void cancelAutoFocusSync() {
+        disarmIfArmed();
+
+        if (camera != null) {
+            try {
+                isAutoFocusing = false;
+                camera.cancelAutoFocus();
+            } catch (RuntimeException e) {
+                Log.e(getClass().getSimpleName(), "Could not cancel auto focus?", e);
+            }
+        }
+    }
+
+    public boolean isAutoFocusAvailable() {
+        return (inPreview);
+    }
+
+    @Override
+    public void onAutoFocus(boolean success, Camera camera) {
+        long focusNanos = System.nanoTime() - focusStartNanos;
+
+        isAutoFocusing = false;
+        lastFocusTime = (success ? SystemClock.elapsedRealtime() : 0);
+        metrics.recordFocus(focusNanos);
+
+        // a triggered focus in a continuous mode also locks the lens,
+        // until cancelAutoFocus(), so resume continuous focus later
+
+        if (focusState == CameraHost.FocusState.FOCUSING
+                || focusState == CameraHost.FocusState.CONTINUOUS
+                || (previewParams != null && isContinuousFocus(previewParams.getFocusMode()))) {
+            setFocusState(success ? CameraHost.FocusState.LOCKED : CameraHost.FocusState.FAILED,
+                    focusNanos / 1000000);
+
+            if (focusLockMillis > 0) {
+                handler.postDelayed(resetFocusTask, focusLockMillis);
+            }
+        }
+
+        if (getCameraHost() instanceof AutoFocusCallback) {
+            getCameraHost().onAutoFocus(success, camera);
+        }
+
+        drainFocusQueue();
+    }
+
+    /**
+     * Focuses on, and meters for, the part of the preview around a
+     * point in this view (e.g., where the user tapped), then locks the
+     * focus. After the focus lock timeout, or resetFocus(), the camera
+     * goes back to continuous auto-focus over the whole frame, if it
+     * supports that.
+     *
+     * @param x in this view's coordinates
+     * @param y in this view's coordinates
+     */
+    public void focusAt(float x, float y) {
+        View preview = (getChildCount() > 0 ? getChildAt(0) : null);
+
+        if (preview == null || preview.getWidth() == 0 || preview.getHeight() == 0) {
+            return;
+        }
+
+        // the preview widget may be larger than this view when using a
+        // full-bleed preview, so map from where it really is
+
+        Rect bounds = new Rect(preview.getLeft(), preview.getTop(),
+                preview.getRight(), preview.getBottom());
+        boolean mirror = getCameraCapabilities().isFrontFacing();
+        final Rect focusArea = CameraUtils.previewToCameraArea(x, y, bounds,
+                displayOrientation, mirror, FOCUS_AREA_SIZE);
+        final Rect meteringArea = CameraUtils.previewToCameraArea(x, y, bounds,
+                displayOrientation, mirror, METERING_AREA_SIZE);
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                focusAtSync(focusArea, meteringArea);
+            }
+        });
+    }
+
+    /**
+     * Drops any focus and metering areas from focusAt() and unlocks the
+     * focus, returning to continuous auto-focus if the camera supports
+     * it.
+     */
+    public void resetFocus() {
+        handler.post(resetFocusTask);
+    }
+
+    /**
+     * @param focusLockMillis how long focus stays locked after focusing,
+     *                        before going back to continuous auto-focus;
+     *                        0 to stay locked until resetFocus()
+     */
+    public void setFocusLockTimeout(long focusLockMillis) {
+        this.focusLockMillis = focusLockMillis;
+    }
+
+    public CameraHost.FocusState getFocusState() {
+        return (focusState);
+    }
+
+    /**
+     * Run only in executor
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void focusAtSync(Rect focusArea, Rect meteringArea) {
+        disarmIfArmed();
+
+        Camera.Parameters params = getCameraParameters();
+
+        if (camera == null || !inPreview || params == null) {
+            return;
+        }
+
+        handler.removeCallbacks(resetFocusTask);
+
+        if (isAutoFocusing) {
+            cancelAutoFocusSync();
+        }
+
+        CameraCapabilities caps = getCapabilities();
+
+        if (restoreFocusMode == null) {
+            restoreFocusMode = params.getFocusMode();
+        }
+
+        if (caps.getMaxNumFocusAreas() > 0) {
+            params.setFocusAreas(Collections.singletonList(new Camera.Area(focusArea, 1000)));
+        }
+
+        if (caps.getMaxNumMeteringAreas() > 0) {
+            params.setMeteringAreas(Collections.singletonList(new Camera.Area(meteringArea, 1000)));
+        }
+
+        // a triggered focus in auto mode goes straight for the area,
+        // rather than wherever continuous focus had been hunting
+
+        if (caps.getSupportedFocusModes() != null
+                && caps.getSupportedFocusModes().contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
+            params.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
+        }
+
+        setCameraParametersSync(params);
+        setFocusState(CameraHost.FocusState.FOCUSING, 0);
+        autoFocusSync();
+
+        if (!isAutoFocusing) {
+            setFocusState(CameraHost.FocusState.FAILED, 0);
+        }
+    }
+
+    /**
+     * Run only in executor
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void resetFocusSync() {
+        disarmIfArmed();
+
+        handler.removeCallbacks(resetFocusTask);
+
+        Camera.Parameters params = getCameraParameters();
+
+        if (camera == null || params == null) {
+            return;
+        }
+
+        if (focusState != CameraHost.FocusState.IDLE
+                && focusState != CameraHost.FocusState.CONTINUOUS) {
+            cancelAutoFocusSync();
+        }
+
+        // undo focusAt(), going back to the app's own continuous mode,
+        // or to continuous-picture if the camera has it
+
+        if (restoreFocusMode != null) {
+            CameraCapabilities caps = getCapabilities();
+            List<String> modes = caps.getSupportedFocusModes();
+            String mode = restoreFocusMode;
+
+            if (!isContinuousFocus(mode) && modes != null
+                    && modes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
+                mode = Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE;
+            }
+
+            if (caps.getMaxNumFocusAreas() > 0) {
+                params.setFocusAreas(null);
+            }
+
+            if (caps.getMaxNumMeteringAreas() > 0) {
+                params.setMeteringAreas(null);
+            }
+
+            params.setFocusMode(mode);
+            setCameraParametersSync(params);
+            restoreFocusMode = null;
+        }
+
+        setFocusState(isContinuousFocus(params.getFocusMode())
+                ? CameraHost.FocusState.CONTINUOUS : CameraHost.FocusState.IDLE, 0);
+        drainFocusQueue();
+    }
+
+    private final Runnable resetFocusTask = new Runnable() {
+        @Override
+        public void run() {
+            resetFocusSync();
+        }
+    };
+
+    private void setFocusState(CameraHost.FocusState state, long durationMillis) {
+        if (state != focusState) {
+            focusState = state;
+            getCameraHost().onFocusStateChanged(state, durationMillis);
+        }
+    }
+
+    private static boolean isContinuousFocus(String mode) {
+        return (Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE.equals(mode)
+                || Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO.equals(mode));
+    }
+
+    public String getFlashMode() {
+        return (previewParams.getFlashMode());
+    }
+
+    public void setFlashMode(final String mode) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (camera != null) {
+                    Camera.Parameters params = getCameraParameters();
+                    params.setFlashMode(mode);
+                    setCameraParametersSync(params);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return a ZoomController for zooming to rapidly-changing levels
+     *         (e.g., from a SeekBar), coalescing them into the latest
+     */
+    public ZoomController getZoomController() {
+        return (zoomController);
+    }
+
+    /**
+     * Turns pinch-to-zoom on this view on or off (the default). Pinches
+     * scale the zoom ratio, and are applied through the ZoomController.
+     * Cameras whose zoom does not really work, per the DeviceProfile,
+     * ignore pinches.
+     */
+    public void setPinchToZoomEnabled(boolean enabled) {
+        if (enabled && pinchZoom == null) {
+            pinchZoom = new PinchZoomHandler(this);
+        } else if (!enabled) {
+            pinchZoom = null;
+        }
+    }
+
+    public boolean isPinchToZoomEnabled() {
+        return (pinchZoom != null);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (pinchZoom != null) {
+            boolean handled = pinchZoom.onTouchEvent(event);
+
+            return (super.onTouchEvent(event) || handled);
+        }
+
+        return (super.onTouchEvent(event));
+    }
+
+    /**
+     * Run only in executor
+     */
+    Camera getCamera() {
+        return (camera);
+    }
+
+    public ZoomTransaction zoomTo(int level) {
+        disarmIfArmed();
+
+        if (camera == null) {
+            throw new IllegalStateException(
+                    "Yes, we have no camera, we have no camera today");
+        } else {
+            Camera.Parameters params = getCameraParameters();
+
+            if (level >= 0 && level <= params.getMaxZoom()) {
+                return (new ZoomTransaction(camera, level));
+            } else {
+                throw new IllegalArgumentException(
+                        String.format("Invalid zoom level: %d",
+                                level));
+            }
+        }
+    }
+
+    /**
+     * Has detected faces delivered, in this view's coordinates, to a
+     * FaceTracker. A CameraHost that implements
+     * Camera.FaceDetectionListener still gets the raw faces as well.
+     *
+     * @param tracker the FaceTracker, or null for none
+     */
+    public void setFaceTracker(FaceTracker tracker) {
+        faceTracker = tracker;
+        updateFaceTrackerGeometry();
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                setFaceDetectionListenerSync();
+            }
+        });
+    }
+
+    private void updateFaceTrackerGeometry() {
+        FaceTracker tracker = faceTracker;
+
+        if (tracker != null && getChildCount() > 0) {
+            View child = getChildAt(0);
+
+            tracker.setGeometry(child.getLeft(), child.getTop(),
+                    child.getRight(), child.getBottom(), displayOrientation,
+                    getCameraCapabilities().isFrontFacing());
+        }
+    }
+
+    /**
+     * Run only in executor
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void setFaceDetectionListenerSync() {
+        disarmIfArmed();
+
+        if (camera == null
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            return;
+        }
+
+        Camera.FaceDetectionListener hostListener = null;
+
+        if (getCameraHost() instanceof Camera.FaceDetectionListener) {
+            hostListener = (Camera.FaceDetectionListener) getCameraHost();
+        }
+
+        FaceTracker tracker = faceTracker;
+
+        if (tracker != null) {
+            tracker.setPassThrough(hostListener);
+            camera.setFaceDetectionListener(tracker);
+        } else if (hostListener != null) {
+            camera.setFaceDetectionListener(hostListener);
+        } else {
+            camera.setFaceDetectionListener(null);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    public void startFaceDetection() {
+        disarmIfArmed();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH
+                && camera != null && !isDetectingFaces
+                && getCapabilities().getMaxNumDetectedFaces() > 0) {
+            camera.startFaceDetection();
+            isDetectingFaces = true;
+        }
+    }
+
+    public void stopFaceDetection() {
+        disarmIfArmed();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH
+                && camera != null && isDetectingFaces) {
+            camera.stopFaceDetection();
+            isDetectingFaces = false;
+        }
+    }
+
+    public void setPreviewCallback(final Camera.PreviewCallback callback) {
+        previewCallback = callback;
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                setPreviewCallbackSync(callback);
+            }
+        });
+    }
+
+    public void addPreviewCallbackBuffer(final byte[] buffer) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                addPreviewCallbackBufferSync(buffer);
+            }
+        });
+    }
+
+    protected void setPreviewCallbackSync(Camera.PreviewCallback callback) {
+        disarmIfArmed();
+
+        previewCallback = callback;
+
+        if (camera != null) {
+            // while encoding preview frames, the encoder sees each
+            // frame first and passes it along to the app's callback
+
+            Camera.PreviewCallback active =
+                    (previewEncoder == null ? previewCallback : encodingCallback);
+
+            try {
+                if (getCameraHost().getDeviceProfile().isCustomRom()) {
+                    camera.setPreviewCallback(active);
+                } else {
+                    camera.setPreviewCallbackWithBuffer(active);
+                }
+            } catch (RuntimeException e) {
                 android.util.Log.e(getClass().getSimpleName(),
                         "setPreviewCallbackSync(). Could not set preview callback.",e);
             }
         }
     }
 
+    /**
+     * Starts recording video by encoding preview frames, rather than
+     * via MediaRecorder. Unlike record(), this works in any orientation,
+     * leaves the preview running, and still delivers frames to the
+     * callback given to setPreviewCallback(). Requires API Level 18+.
+     *
+     * @param encoder configured for the output file; the preview size
+     *                and output orientation are supplied here
+     */
+    public void startPreviewRecording(final PreviewEncoder encoder) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            throw new UnsupportedOperationException(
+                    "Preview recording supported only on API Level 18+");
+        }
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                startPreviewRecordingSync(encoder);
+            }
+        });
+    }
+
+    /**
+     * Stops a recording begun by startPreviewRecording(). The file is
+     * finished in the background; use a PreviewEncoder.Listener to find
+     * out when it is complete.
+     */
+    public void stopPreviewRecording() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopPreviewRecordingSync();
+            }
+        });
+    }
+
+    public boolean isPreviewRecording() {
+        return (previewEncoder != null);
+    }
+
+    /**
+     * Run only in executor
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void startPreviewRecordingSync(PreviewEncoder encoder) {
+        disarmIfArmed();
+
+        if (camera == null || !inPreview || previewEncoder != null) {
+            getCameraHost().handleException(new IllegalStateException(
+                    "Cannot start preview recording now"));
+
+            return;
+        }
+
+        try {
+            Camera.Parameters params = camera.getParameters();
+
+            if (params.getPreviewFormat() != ImageFormat.NV21) {
+                throw new IllegalStateException(
+                        "Preview recording requires NV21 preview frames");
+            }
+
+            setCameraPictureOrientation(params);
+            camera.setParameters(params);
+            encoder.start(previewSize.width, previewSize.height,
+                    outputOrientation);
+        } catch (Exception e) {
+            getCameraHost().handleException(e);
+
+            return;
+        }
+
+        previewEncoder = encoder;
+        setPreviewCallbackSync(previewCallback);
+
+        // without an app callback, nobody else supplies buffers
+
+        if (previewCallback == null
+                && !getCameraHost().getDeviceProfile().isCustomRom()) {
+            int frameSize = previewSize.width * previewSize.height
+                    * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+
+            for (int i = 0; i < ENCODER_CALLBACK_BUFFERS; i++) {
+                camera.addCallbackBuffer(new byte[frameSize]);
+            }
+        }
+    }
+
+    /**
+     * Run only in executor
+     */
+    private void stopPreviewRecordingSync() {
+        PreviewEncoder encoder = previewEncoder;
+
+        if (encoder != null) {
+            previewEncoder = null;
+            encoder.stop();
+            setPreviewCallbackSync(previewCallback);
+
+            if (!pendingSnapshots.isEmpty()) {
+                pendingSnapshots.clear();
+                Log.e(getClass().getSimpleName(),
+                        "Recording stopped before snapshot could be taken");
+            }
+        }
+    }
+
+    private void takeFrameSnapshots(byte[] data) {
+        byte[] frame = null;
+        PictureTransaction xact;
+
+        while ((xact = pendingSnapshots.poll()) != null) {
+            if (frame == null) {
+                frame = data.clone();
+            }
+
+            new Thread(new FrameSnapshotTask(getContext(), frame,
+                    previewSize.width, previewSize.height, outputOrientation,
+                    getCapabilities(), xact), "CWAC_CAMERA_SNAPSHOT").start();
+        }
+    }
+
+    private final Camera.PreviewCallback encodingCallback = new Camera.PreviewCallback() {
+        @Override
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            PreviewEncoder encoder = previewEncoder;
+
+            if (encoder != null) {
+                encoder.offer(data, System.nanoTime());
+            }
+
+            if (!pendingSnapshots.isEmpty()) {
+                takeFrameSnapshots(data);
+            }
+
+            if (previewCallback != null) {
+                previewCallback.onPreviewFrame(data, camera);
+            } else if (encoder != null) {
+                camera.addCallbackBuffer(data);
+            }
+        }
+    };
+
     protected void addPreviewCallbackBufferSync(final byte[] buffer) {
+        disarmIfArmed();
+
         if (camera != null && buffer != null) {
             camera.addCallbackBuffer(buffer);
         }
     }
 
     public boolean doesZoomReallyWork() {
-        Camera.CameraInfo info = new Camera.CameraInfo();
-        Camera.getCameraInfo(getCameraHost().getCameraId(), info);
+        CameraCapabilities caps = getCameraCapabilities();
+
+        return (getCameraHost().getDeviceProfile().doesZoomActuallyWork(caps.isFrontFacing()));
+    }
+
+    /**
+     * @return latency histograms for the stages of taking a picture
+     */
+    public CameraMetrics getCameraMetrics() {
+        return (metrics);
+    }
+
+    /**
+     * @return the capabilities of the camera in use, or of the camera
+     *         that the CameraHost asks for if none is open yet
+     */
+    public CameraCapabilities getCameraCapabilities() {
+        if (capabilities == null) {
+            return (CameraCapabilities.get(getContext(), getCameraHost().getCameraId()));
+        }
 
-        return (getCameraHost().getDeviceProfile().doesZoomActuallyWork(info.facing == CameraInfo.CAMERA_FACING_FRONT));
+        return (capabilities);
     }
 
     void previewCreated() {
@@ -707,30 +1727,186 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
     }
 
     void previewDestroyed() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isInStandby) {
+                    releaseCameraSync();
+                }
+
+                setTracksPictureOrientation(false);
+            }
+        });
+    }
+
+    private void releaseCameraSync() {
+        clearFocusQueue();
+        zoomController.reset();
+
+        if (calibrator != null) {
+            calibrator.cancel();
+            calibrator = null;
+        }
+
+        if (faceTracker != null) {
+            faceTracker.clear();
+        }
+        handler.removeCallbacks(resetFocusTask);
+        restoreFocusMode = null;
+        focusState = CameraHost.FocusState.IDLE;
+
+        if (camera != null) {
+            stopPreviewRecordingSync();
+
+            try {
+                if (inPreview) {
+                    stopPreviewSync();
+                } else {
+                    camera.setPreviewCallback(null);
+                }
+                camera.release();
+            } catch (RuntimeException e) {
+                android.util.Log.e(getClass().getSimpleName(),
+                        "Could not release camera.",
+                        e);
+            }
+            camera = null;
+            cameraDisplayOrientation = -1;
+        }
+    }
+
+    /**
+     * Keeps the camera open, with the preview stopped and the
+     * callbacks detached, for up to {@code timeout} milliseconds,
+     * so that a following {@link #onResume()} can skip opening and
+     * configuring the camera. The camera is released once the
+     * timeout elapses, on {@code onTrimMemory()}, or when the camera
+     * is evicted by another client.
+     *
+     * @param timeout
+     */
+    private void enterStandby(final int timeout) {
+        getContext().getApplicationContext()
+                .registerComponentCallbacks(standbyMemoryCallbacks);
+
         handler.post(new Runnable() {
             @Override
             public void run() {
                 if (camera != null) {
                     try {
+                        if (isAutoFocusing) {
+                            isAutoFocusing = false;
+                            camera.cancelAutoFocus();
+                        }
+
+                        clearFocusQueue();
+
+                        stopFaceDetection();
+
                         if (inPreview) {
                             stopPreviewSync();
                         } else {
                             camera.setPreviewCallback(null);
                         }
-                        camera.release();
+
+                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+                            camera.setFaceDetectionListener(null);
+                        }
                     } catch (RuntimeException e) {
                         android.util.Log.e(getClass().getSimpleName(),
-                                "Could not release camera.",
+                                "Could not put camera in standby, releasing it.",
                                 e);
+                        releaseCameraSync();
                     }
-                    camera = null;
                 }
 
-                CameraView.this.onOrientationChange.disable();
+                if (camera != null) {
+                    isInStandby = true;
+                    standbyView = new WeakReference<CameraView>(CameraView.this);
+                    handler.postDelayed(releaseStandbyCamera, timeout);
+                } else {
+                    unregisterStandbyCallbacks();
+                }
             }
         });
     }
 
+    private void leaveStandbySync() {
+        handler.removeCallbacks(releaseStandbyCamera);
+        isInStandby = false;
+
+        if (standbyView != null && standbyView.get() == this) {
+            standbyView = null;
+        }
+
+        unregisterStandbyCallbacks();
+    }
+
+    /**
+     * Releases the camera right away if it is being kept open
+     * in standby. Run only in executor
+     */
+    private void releaseStandbyCameraSync() {
+        if (isInStandby) {
+            leaveStandbySync();
+            releaseCameraSync();
+        }
+    }
+
+    /**
+     * @return true if the host still wants the camera that is
+     * being kept open in standby. Run only in executor
+     */
+    private boolean isStandbyCameraWanted() {
+        try {
+            return (getCameraHost().getCameraId() == cameraId);
+        } catch (RuntimeException e) {
+            // the open path asks again, and reports the failure
+            return (false);
+        }
+    }
+
+    private void unregisterStandbyCallbacks() {
+        try {
+            getContext().getApplicationContext()
+                    .unregisterComponentCallbacks(standbyMemoryCallbacks);
+        } catch (RuntimeException e) {
+            // was not registered
+        }
+    }
+
+    private final Runnable releaseStandbyCamera = new Runnable() {
+        @Override
+        public void run() {
+            releaseStandbyCameraSync();
+        }
+    };
+
+    private final Camera.ErrorCallback standbyErrorCallback = new Camera.ErrorCallback() {
+        @Override
+        public void onError(int error, Camera camera) {
+            // e.g., CAMERA_ERROR_EVICTED, when another app takes over the camera
+            releaseStandbyCameraSync();
+        }
+    };
+
+    private final ComponentCallbacks2 standbyMemoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            handler.post(releaseStandbyCamera);
+        }
+
+        @Override
+        public void onLowMemory() {
+            handler.post(releaseStandbyCamera);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+            // no-op
+        }
+    };
+
     void previewReset(int width, int height) {
         previewStopped();
         initPreview(width, height);
@@ -793,11 +1969,23 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
     }
 
     protected void startPreviewSync() {
+        disarmIfArmed();
+
         try {
             if (camera != null) {
+                previewStartTime = SystemClock.elapsedRealtime();
                 camera.startPreview();
                 inPreview = true;
                 getCameraHost().autoFocusAvailable();
+
+                if (!focusQueue.isEmpty()) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            drainFocusQueue();
+                        }
+                    });
+                }
             }
         } catch (RuntimeException e) {
             android.util.Log.v(getClass().getSimpleName(),
@@ -815,6 +2003,8 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
     }
 
     private void stopPreviewSync() {
+        disarmIfArmed();
+
         try {
             if (camera != null) {
                 inPreview = false;
@@ -855,13 +2045,12 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
     // and http://stackoverflow.com/a/10383164/115145
 
     private void setCameraDisplayOrientation() {
-        Camera.CameraInfo info = new Camera.CameraInfo();
+        disarmIfArmed();
+
+        int previousOrientation = displayOrientation;
+        CameraCapabilities info = getCapabilities();
         int rotation = getActivity().getWindowManager().getDefaultDisplay().getRotation();
         int degrees = 0;
-        DisplayMetrics dm = new DisplayMetrics();
-
-        Camera.getCameraInfo(cameraId, info);
-        getActivity().getWindowManager().getDefaultDisplay().getMetrics(dm);
 
         switch (rotation) {
             case Surface.ROTATION_0:
@@ -878,45 +2067,86 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
                 break;
         }
 
-        if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-            displayOrientation = (info.orientation + degrees) % 360;
+        if (info.isFrontFacing()) {
+            displayOrientation = (info.getOrientation() + degrees) % 360;
             displayOrientation = (360 - displayOrientation) % 360;
         } else {
-            displayOrientation = (info.orientation - degrees + 360) % 360;
+            displayOrientation = (info.getOrientation() - degrees + 360) % 360;
         }
 
         if (camera != null) {
-            boolean wasInPreview = inPreview;
+            final boolean report = inPreview && previousOrientation != displayOrientation;
+            final int newOrientation = displayOrientation;
+            final long start = SystemClock.elapsedRealtime();
+            int previewRotation = (displayOrientation - cameraDisplayOrientation + 360) % 360;
 
-            if (inPreview) {
-                stopPreviewSync();
-            }
+            // the gap runs until the rotation is showing: once the
+            // widget has applied its transform, which happens on the
+            // main application thread, or once the running preview
+            // has a new display orientation
 
-            try {
-                camera.setDisplayOrientation(displayOrientation);
-            } catch (RuntimeException e) {
-                android.util.Log.v(getClass().getSimpleName(),
-                        "setCameraDisplayOrientation(). Could not set camera display orientation.");
+            Runnable onApplied = null;
+
+            if (report) {
+                onApplied = new Runnable() {
+                    @Override
+                    public void run() {
+                        final long gap = SystemClock.elapsedRealtime() - start;
+
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                getCameraHost().onPreviewRotated(newOrientation, gap);
+                            }
+                        });
+                    }
+                };
             }
 
-            if (wasInPreview) {
-                startPreviewSync();
+            // prefer rotating the preview widget, then changing the
+            // display orientation of the running preview
+
+            if (cameraDisplayOrientation < 0
+                    || !previewStrategy.setPreviewRotation(previewRotation, onApplied)) {
+                previewStrategy.setPreviewRotation(0, null);
+
+                try {
+                    camera.setDisplayOrientation(displayOrientation);
+                    cameraDisplayOrientation = displayOrientation;
+                } catch (RuntimeException e) {
+                    android.util.Log.v(getClass().getSimpleName(),
+                            "setCameraDisplayOrientation(). Could not set camera display orientation.");
+                }
+
+                if (report) {
+                    getCameraHost().onPreviewRotated(displayOrientation,
+                            SystemClock.elapsedRealtime() - start);
+                }
             }
         }
-    }
 
-    private void setCameraPictureOrientation(Camera.Parameters params) {
-        Camera.CameraInfo info = new Camera.CameraInfo();
+        // a 180-degree turn does not cause a layout pass, so the
+        // face tracker has to hear about the new orientation here;
+        // posted after any widget rotation, so it runs after that
 
-        Camera.getCameraInfo(cameraId, info);
+        if (previousOrientation != displayOrientation) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    updateFaceTrackerGeometry();
+                }
+            });
+        }
+    }
 
+    private void setCameraPictureOrientation(Camera.Parameters params) {
         if (getActivity().getRequestedOrientation() != ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED
                 && !isOrientationHardLocked) {
             outputOrientation =
                     getCameraPictureRotation(getActivity().getWindowManager()
                             .getDefaultDisplay()
                             .getOrientation());
-        } else if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+        } else if (getCapabilities().isFrontFacing()) {
             outputOrientation = (360 - displayOrientation) % 360;
         } else {
             outputOrientation = displayOrientation;
@@ -929,107 +2159,280 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
     // http://developer.android.com/reference/android/hardware/Camera.Parameters.html#setRotation(int)
 
     private int getCameraPictureRotation(int orientation) {
-        Camera.CameraInfo info = new Camera.CameraInfo();
-        Camera.getCameraInfo(cameraId, info);
+        CameraCapabilities info = getCapabilities();
         int rotation = 0;
 
         orientation = (orientation + 45) / 90 * 90;
 
-        if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-            rotation = (info.orientation - orientation + 360) % 360;
+        if (info.isFrontFacing()) {
+            rotation = (info.getOrientation() - orientation + 360) % 360;
         } else { // back-facing camera
-            rotation = (info.orientation + orientation) % 360;
+            rotation = (info.getOrientation() + orientation) % 360;
         }
 
         return (rotation);
     }
 
+    /**
+     * Run only in executor, before the camera is opened. Uses
+     * the preview size that the host chose for a view of this
+     * size on an earlier run, if there is one, so the preview
+     * is laid out at the right aspect ratio while the camera
+     * opens, rather than after.
+     */
+    private void negotiatePreviewSizeSync(int width, int height) {
+        capabilities = CameraCapabilities.get(getContext(), cameraId);
+        expectedPreviewWidth = 0;
+        expectedPreviewHeight = 0;
+
+        if (width == 0 || height == 0) {
+            return;
+        }
+
+        setCameraDisplayOrientation();
+
+        int[] size = capabilities.getNegotiatedPreviewSize(displayOrientation,
+                width, height);
+
+        if (size != null) {
+            expectedPreviewWidth = size[0];
+            expectedPreviewHeight = size[1];
+            postRequestLayout();
+        }
+    }
+
+    /**
+     * Run only in executor, once the camera is open. Asks the
+     * host for the preview size, and lays the preview out
+     * again if that is not the size negotiatePreviewSizeSync()
+     * expected.
+     */
+    private void confirmPreviewSizeSync(int width, int height) {
+        if (width == 0 || height == 0) {
+            return;
+        }
+
+        Camera.Size size = choosePreviewSizeSync(width, height);
+
+        if (size != null) {
+            previewSize = size;
+
+            if (size.width != expectedPreviewWidth
+                    || size.height != expectedPreviewHeight) {
+                postRequestLayout();
+            }
+        }
+    }
+
+    /**
+     * Run only in executor, with the camera open. Asks the
+     * host for the preview size for a view of this size,
+     * preferring the one for video unless the recording hint
+     * is STILL_ONLY, and remembers the answer for
+     * negotiatePreviewSizeSync() on later runs.
+     *
+     * @return the size, or null if the host could not pick one
+     */
+    private Camera.Size choosePreviewSizeSync(int width, int height) {
+        Camera.Size result = null;
+
+        try {
+            if (getCameraHost().getRecordingHint() != CameraHost.RecordingHint.STILL_ONLY) {
+                result =
+                        getCameraHost().getPreferredPreviewSizeForVideo(getDisplayOrientation(),
+                                width,
+                                height,
+                                getCameraParameters(),
+                                null);
+            }
+
+            if (result == null || result.width * result.height < 65536) {
+                result =
+                        getCameraHost().getPreviewSize(getDisplayOrientation(),
+                                width, height,
+                                getCameraParameters());
+            }
+        } catch (Exception e) {
+            android.util.Log.v(getClass().getSimpleName(),
+                    "choosePreviewSizeSync(). Could not work with camera parameters.");
+        }
+
+        if (result != null) {
+            CameraCapabilities.recordPreviewSize(getContext(), cameraId,
+                    getDisplayOrientation(), width, height, result.width,
+                    result.height);
+        }
+
+        return (result);
+    }
+
+    private void postRequestLayout() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                requestLayout();
+            }
+        });
+    }
+
+    private CameraCapabilities getCapabilities() {
+        if (capabilities == null) {
+            capabilities = CameraCapabilities.get(getContext(), cameraId);
+        }
+
+        return (capabilities);
+    }
+
     Activity getActivity() {
         return ((Activity) getContext());
     }
 
-    private class OnOrientationChange extends OrientationEventListener {
+    /**
+     * Turns tracking of the physical orientation of the device for
+     * the picture rotation on or off. While it is on, the rotation is
+     * kept in the cached parameters and applied when the picture is
+     * taken, rather than being pushed to the camera on every turn.
+     *
+     * @param tracks
+     */
+    private void setTracksPictureOrientation(boolean tracks) {
+        tracksPictureOrientation = tracks;
+        updateOrientationListener();
+    }
 
-        private int currentOrientation = ORIENTATION_UNKNOWN;
-        private boolean isEnabled = false;
+    private void setTracksDisplayRotation(boolean tracks) {
+        tracksDisplayRotation = tracks;
 
-        public OnOrientationChange(Context context) {
-            super(context, UPDATE_RATE_US);
-            disable();
+        if (!tracks) {
+            removeCallbacks(displayRotationCheck);
         }
 
-        public void resetOrientation() {
-            currentOrientation = ORIENTATION_UNKNOWN;
+        updateOrientationListener();
+    }
+
+    private void updateOrientationListener() {
+        if (tracksPictureOrientation || tracksDisplayRotation) {
+            orientationMonitor.addListener(orientationListener);
+        } else {
+            orientationMonitor.removeListener(orientationListener);
         }
+    }
 
+    private final OrientationMonitor.Listener orientationListener = new OrientationMonitor.Listener() {
         @Override
-        public void onOrientationChanged(int orientation) {
-            if (camera == null || !canDetectOrientation() || orientation == ORIENTATION_UNKNOWN) {
-                return;
-            }
+        public void onOrientationChanged(final int orientation) {
+            lastFocusTime = 0; // the scene changed, so focus again
 
-            orientation = getClosestRotationDegree(orientation);
-
-            if (orientation != currentOrientation) {
-                outputOrientation = getCameraPictureRotation(orientation);
+            if (tracksPictureOrientation) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        updatePictureOrientationSync(orientation);
+                    }
+                });
+            }
 
-                Camera.Parameters params = getCameraParameters();
+            // the display only rotates a bit after the device does, so
+            // keep checking for a little while after each turn
 
-                params.setRotation(outputOrientation);
-                setCameraParametersSync(params);
-                currentOrientation = orientation;
+            if (tracksDisplayRotation) {
+                rotationCheckDeadline = SystemClock.uptimeMillis() + ROTATION_SETTLE_MS;
+                removeCallbacks(displayRotationCheck);
+                post(displayRotationCheck);
             }
         }
+    };
+
+    private final Runnable displayRotationCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (windowManager == null || !tracksDisplayRotation) {
+                return;
+            }
 
-        private int getClosestRotationDegree(int rotation) {
-            for (int value : ROTATION_DEGREES) {
-                final int diff = Math.abs(rotation - value);
+            int rotation = windowManager.getDefaultDisplay().getRotation();
 
-                if (diff < 45) {
-                    return value;
-                }
+            if (rotation != lastRotation) {
+                lastRotation = rotation;
+                setCameraDisplayOrientationAsync();
+            } else if (SystemClock.uptimeMillis() < rotationCheckDeadline) {
+                postDelayed(this, ROTATION_CHECK_INTERVAL_MS);
             }
-            return 0;
         }
+    };
 
-        @Override
-        public void enable() {
-            isEnabled = true;
-            super.enable();
+    /**
+     * Run only in executor
+     *
+     * @param orientation
+     */
+    private void updatePictureOrientationSync(int orientation) {
+        if (camera == null || !tracksPictureOrientation
+                || orientation == pictureOrientation) {
+            return;
         }
 
-        @Override
-        public void disable() {
-            isEnabled = false;
-            super.disable();
+        outputOrientation = getCameraPictureRotation(orientation);
+        pictureOrientation = orientation;
+
+        Camera.Parameters params = getCameraParameters();
+
+        if (params != null) {
+            params.setRotation(outputOrientation);
         }
+    }
 
-        boolean isEnabled() {
-            return (isEnabled);
+    // with continuous focus modes, the camera moving its focus means
+    // that the scene changed, so the last focus result is stale
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private class FocusMoveCallback implements Camera.AutoFocusMoveCallback {
+        @Override
+        public void onAutoFocusMoving(boolean start, Camera camera) {
+            if (start) {
+                lastFocusTime = 0;
+            }
         }
     }
 
     private class PictureTransactionCallback implements
             Camera.PictureCallback {
         PictureTransaction xact = null;
+        boolean isSnapshot;
 
-        PictureTransactionCallback(PictureTransaction xact) {
+        PictureTransactionCallback(PictureTransaction xact, boolean isSnapshot) {
             this.xact = xact;
+            this.isSnapshot = isSnapshot;
         }
 
         @Override
         public void onPictureTaken(byte[] data, Camera camera) {
-            if (previewParams != null) {
+            xact.mark(PictureTransaction.MARK_PICTURE_TAKEN);
+
+            // a snapshot during video leaves the preview, and the
+            // recording, alone
+
+            if (previewParams != null && !isSnapshot) {
                 CameraView.this.setCameraParameters(previewParams);
             }
 
-            final byte[] finalizedData = data;
-            if (finalizedData != null) {
-                handler.post(new Runnable() {
+            if (data != null) {
+                PictureStager stager = xact.host.getPictureStager();
+                final PictureStager.Entry staged = (stager == null ? null : stager.stage(data));
+                final byte[] finalizedData = (staged == null ? data : null);
+                final CameraCapabilities caps = getCapabilities();
+
+                cleanupHandler.post(new Runnable() {
                     @Override
                     public void run() {
                         try {
-                            new ImageCleanupTask(getContext(), finalizedData, cameraId, xact).run();
+                            byte[] pending = finalizedData;
+
+                            if (staged != null) {
+                                pending = staged.retrieve();
+                            }
+
+                            new ImageCleanupTask(getContext(), pending, caps, xact).run();
                         } catch (Throwable e) {
                             Log.e("CameraView", "Error camera thread stopped", e);
                         }
@@ -1037,7 +2440,7 @@ public class CameraView extends ViewGroup implements AutoFocusCallback {
                 });
             }
 
-            if (!xact.useSingleShotMode()) {
+            if (!xact.useSingleShotMode() && !isSnapshot) {
                 startPreview();
             }
         }
@@ -0,0 +1,126 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+class CaptureMetrics implements CameraMetrics {
+  private static final Stage[] STAGES=Stage.values();
+  private final LatencyHistogram[] histograms=
+      new LatencyHistogram[STAGES.length];
+  private final LatencyHistogram focusHistogram=new LatencyHistogram();
+  private final AtomicLong pictureCount=new AtomicLong();
+  private volatile Exporter exporter=null;
+
+  CaptureMetrics() {
+    for (int i=0; i < histograms.length; i++) {
+      histograms[i]=new LatencyHistogram();
+    }
+  }
+
+  @Override
+  public LatencyHistogram getHistogram(Stage stage) {
+    return(histograms[stage.ordinal()]);
+  }
+
+  @Override
+  public LatencyHistogram getFocusHistogram() {
+    return(focusHistogram);
+  }
+
+  @Override
+  public long getPictureCount() {
+    return(pictureCount.get());
+  }
+
+  @Override
+  public void reset() {
+    for (LatencyHistogram histogram : histograms) {
+      histogram.reset();
+    }
+
+    focusHistogram.reset();
+
+    pictureCount.set(0);
+  }
+
+  @Override
+  public void setExporter(Exporter exporter) {
+    this.exporter=exporter;
+  }
+
+  void record(PictureTransaction xact) {
+    long[] marks=xact.marks;
+    int captureStart=
+        (marks[PictureTransaction.MARK_SHUTTER] != 0 ? PictureTransaction.MARK_SHUTTER : PictureTransaction.MARK_TAKE_PICTURE);
+    long[] stageNanos=new long[STAGES.length];
+
+    stageNanos[Stage.QUEUE.ordinal()]=
+        between(marks, PictureTransaction.MARK_REQUESTED,
+                PictureTransaction.MARK_DEQUEUED);
+    stageNanos[Stage.PREPARE.ordinal()]=
+        between(marks, PictureTransaction.MARK_DEQUEUED,
+                PictureTransaction.MARK_TAKE_PICTURE);
+    stageNanos[Stage.SHUTTER.ordinal()]=
+        between(marks, PictureTransaction.MARK_TAKE_PICTURE,
+                PictureTransaction.MARK_SHUTTER);
+    stageNanos[Stage.CAPTURE.ordinal()]=
+        between(marks, captureStart,
+                PictureTransaction.MARK_PICTURE_TAKEN);
+    stageNanos[Stage.CLEANUP_WAIT.ordinal()]=
+        between(marks, PictureTransaction.MARK_PICTURE_TAKEN,
+                PictureTransaction.MARK_CLEANUP_START);
+    stageNanos[Stage.DECODE.ordinal()]=orNone(xact.decodeNanos);
+    stageNanos[Stage.ROTATE.ordinal()]=orNone(xact.rotateNanos);
+    stageNanos[Stage.ENCODE.ordinal()]=orNone(xact.encodeNanos);
+    stageNanos[Stage.SAVE.ordinal()]=orNone(xact.saveNanos);
+    stageNanos[Stage.CLEANUP.ordinal()]=
+        between(marks, PictureTransaction.MARK_CLEANUP_START,
+                PictureTransaction.MARK_CLEANUP_END);
+    stageNanos[Stage.TOTAL.ordinal()]=
+        between(marks, PictureTransaction.MARK_REQUESTED,
+                PictureTransaction.MARK_CLEANUP_END);
+
+    for (int i=0; i < stageNanos.length; i++) {
+      if (stageNanos[i] >= 0) {
+        histograms[i].recordNanos(stageNanos[i]);
+      }
+    }
+
+    pictureCount.incrementAndGet();
+
+    Exporter current=exporter;
+
+    if (current != null) {
+      current.onPictureMeasured(xact, stageNanos);
+    }
+  }
+
+  void recordFocus(long nanos) {
+    focusHistogram.recordNanos(nanos);
+  }
+
+  private static long between(long[] marks, int start, int end) {
+    if (marks[start] == 0 || marks[end] == 0) {
+      return(-1);
+    }
+
+    return(marks[end] - marks[start]);
+  }
+
+  private static long orNone(long nanos) {
+    return(nanos > 0 ? nanos : -1);
+  }
+}
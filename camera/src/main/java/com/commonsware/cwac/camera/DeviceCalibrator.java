@@ -0,0 +1,346 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.hardware.Camera;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Measures how this device's camera behaves, by taking a
+ * few pictures: how long auto-focus takes, the shutter lag,
+ * how long the preview takes to come back after a picture,
+ * and the largest picture size that can be decoded and
+ * rotated in memory without running out of heap. The
+ * results go into the CalibratedDeviceProfile, where
+ * CameraView uses them when scheduling pictures, and
+ * CameraUtils uses them when picking picture sizes.
+ *
+ * Pass one of these to calibrate() on CameraView, while the
+ * preview is running and nothing is being recorded. The
+ * pictures are thrown away, not given to the CameraHost.
+ * Do not take pictures or focus until the Listener is
+ * called.
+ */
+public class DeviceCalibrator {
+  public static final int DEFAULT_ROUNDS=3;
+  private static final int MAX_SIZE_ATTEMPTS=4;
+  private static final long NANOS_PER_MILLI=1000000;
+
+  /**
+   * Listener for the end of calibration. Methods are called
+   * on a background thread.
+   */
+  public interface Listener {
+    void onCalibrationComplete(CalibratedDeviceProfile profile);
+
+    void onCalibrationFailed(Exception e);
+  }
+
+  private final Listener listener;
+  private int rounds=DEFAULT_ROUNDS;
+  private CameraView cameraView=null;
+  private Camera camera=null;
+  private CalibratedDeviceProfile profile=null;
+  private final ArrayList<Camera.Size> sizes=new ArrayList<Camera.Size>();
+  private final ArrayList<Long> focusNanos=new ArrayList<Long>();
+  private final ArrayList<Long> shutterNanos=new ArrayList<Long>();
+  private final ArrayList<Long> restartNanos=new ArrayList<Long>();
+  private boolean canFocus=false;
+  private boolean isRunning=false;
+  private boolean isPreviewRunning=true;
+  private int sizeIndex=0;
+  private int safeHeight=-1;
+  private int round=0;
+  private long stepStart=0;
+
+  public DeviceCalibrator(Listener listener) {
+    this.listener=listener;
+  }
+
+  /**
+   * How many pictures to take and measure. More gives
+   * steadier numbers. A few more may be taken while looking
+   * for the largest usable picture size.
+   */
+  public DeviceCalibrator rounds(int rounds) {
+    this.rounds=Math.max(1, rounds);
+
+    return(this);
+  }
+
+  /**
+   * Run only in executor
+   */
+  void start(CameraView cameraView, Camera camera,
+             CalibratedDeviceProfile profile) {
+    this.cameraView=cameraView;
+    this.camera=camera;
+    this.profile=profile;
+    isRunning=true;
+    isPreviewRunning=true;
+
+    try {
+      Camera.Parameters params=camera.getParameters();
+      String focusMode=params.getFocusMode();
+      DeviceProfile base=profile.getBaseProfile();
+
+      canFocus=
+          !Camera.Parameters.FOCUS_MODE_FIXED.equals(focusMode)
+              && !Camera.Parameters.FOCUS_MODE_INFINITY.equals(focusMode)
+              && !Camera.Parameters.FOCUS_MODE_EDOF.equals(focusMode);
+
+      // largest first, skipping sizes the base profile rules
+      // out, as those would not be used anyway
+
+      for (Camera.Size size : params.getSupportedPictureSizes()) {
+        if (size.height <= base.getMaxPictureHeight()
+            && size.height >= base.getMinPictureHeight()) {
+          sizes.add(size);
+        }
+      }
+
+      if (sizes.isEmpty()) {
+        sizes.addAll(params.getSupportedPictureSizes());
+      }
+
+      Collections.sort(sizes, new Comparator<Camera.Size>() {
+        @Override
+        public int compare(Camera.Size lhs, Camera.Size rhs) {
+          long lhsArea=(long)lhs.width * lhs.height;
+          long rhsArea=(long)rhs.width * rhs.height;
+
+          return(lhsArea > rhsArea ? -1 : (lhsArea < rhsArea ? 1 : 0));
+        }
+      });
+
+      focus();
+    }
+    catch (RuntimeException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * Run only in executor, when the camera is released.
+   */
+  void cancel() {
+    if (isRunning) {
+      isRunning=false;
+      listener.onCalibrationFailed(new IllegalStateException(
+                                                             "Camera closed during calibration"));
+    }
+  }
+
+  /**
+   * Run only in executor, when the CameraView is not in a
+   * state to be calibrated.
+   */
+  void reject() {
+    listener.onCalibrationFailed(new IllegalStateException(
+                                                           "Calibration needs a running preview, and nothing else going on"));
+  }
+
+  private void focus() {
+    if (canFocus) {
+      stepStart=System.nanoTime();
+      camera.autoFocus(focusCallback);
+    }
+    else {
+      capture();
+    }
+  }
+
+  private void capture() {
+    Camera.Parameters params=camera.getParameters();
+    Camera.Size size=sizes.get(sizeIndex);
+
+    params.setPictureSize(size.width, size.height);
+    camera.setParameters(params);
+
+    isPreviewRunning=false;
+    stepStart=System.nanoTime();
+    camera.takePicture(shutterCallback, null, pictureCallback);
+  }
+
+  private void restartPreview() {
+    if (canFocus) {
+      camera.cancelAutoFocus();
+    }
+
+    stepStart=System.nanoTime();
+    camera.setOneShotPreviewCallback(firstFrameCallback);
+    camera.startPreview();
+    isPreviewRunning=true;
+  }
+
+  private void next() {
+    round++;
+
+    if (round < rounds || safeHeight < 0) {
+      focus();
+    }
+    else {
+      finish();
+    }
+  }
+
+  private void finish() {
+    isRunning=false;
+    profile.update(median(shutterNanos), median(restartNanos),
+                   median(focusNanos), safeHeight);
+    cameraView.endCalibrationSync(this, isPreviewRunning);
+    listener.onCalibrationComplete(profile);
+  }
+
+  private void fail(Exception e) {
+    isRunning=false;
+    cameraView.endCalibrationSync(this, isPreviewRunning);
+    listener.onCalibrationFailed(e);
+  }
+
+  private boolean isCurrent(Camera camera) {
+    return(isRunning && camera == this.camera
+        && cameraView.getCamera() == camera);
+  }
+
+  private final Camera.AutoFocusCallback focusCallback=
+      new Camera.AutoFocusCallback() {
+        @Override
+        public void onAutoFocus(boolean success, Camera camera) {
+          if (isCurrent(camera)) {
+            focusNanos.add(System.nanoTime() - stepStart);
+
+            try {
+              capture();
+            }
+            catch (RuntimeException e) {
+              fail(e);
+            }
+          }
+        }
+      };
+
+  private final Camera.ShutterCallback shutterCallback=
+      new Camera.ShutterCallback() {
+        @Override
+        public void onShutter() {
+          if (isRunning) {
+            shutterNanos.add(System.nanoTime() - stepStart);
+          }
+        }
+      };
+
+  private final Camera.PictureCallback pictureCallback=
+      new Camera.PictureCallback() {
+        @Override
+        public void onPictureTaken(byte[] data, Camera camera) {
+          if (!isCurrent(camera)) {
+            return;
+          }
+
+          // keep trying smaller sizes until one fits, then stick
+          // with it for the remaining rounds
+
+          if (safeHeight < 0) {
+            if (data != null && isDecodable(data)) {
+              safeHeight=sizes.get(sizeIndex).height;
+            }
+            else if (sizeIndex + 1 < Math.min(sizes.size(), MAX_SIZE_ATTEMPTS)) {
+              sizeIndex++;
+            }
+            else {
+              safeHeight=0;
+            }
+          }
+
+          try {
+            restartPreview();
+          }
+          catch (RuntimeException e) {
+            fail(e);
+          }
+        }
+      };
+
+  private final Camera.PreviewCallback firstFrameCallback=
+      new Camera.PreviewCallback() {
+        @Override
+        public void onPreviewFrame(byte[] data, Camera camera) {
+          if (isCurrent(camera)) {
+            restartNanos.add(System.nanoTime() - stepStart);
+
+            try {
+              next();
+            }
+            catch (RuntimeException e) {
+              fail(e);
+            }
+          }
+        }
+      };
+
+  // decodes the picture and makes a rotated copy of it, as
+  // ImageCleanupTask would
+
+  private static boolean isDecodable(byte[] jpeg) {
+    Bitmap original=null;
+    Bitmap rotated=null;
+
+    try {
+      original=BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+
+      if (original == null) {
+        return(false);
+      }
+
+      Matrix matrix=new Matrix();
+
+      matrix.postRotate(90);
+      rotated=
+          Bitmap.createBitmap(original, 0, 0, original.getWidth(),
+                              original.getHeight(), matrix, true);
+
+      return(true);
+    }
+    catch (OutOfMemoryError e) {
+      return(false);
+    }
+    finally {
+      if (rotated != null) {
+        rotated.recycle();
+      }
+
+      if (original != null) {
+        original.recycle();
+      }
+    }
+  }
+
+  private static int median(List<Long> nanos) {
+    if (nanos.isEmpty()) {
+      return(-1);
+    }
+
+    Collections.sort(nanos);
+
+    return((int)(nanos.get(nanos.size() / 2) / NANOS_PER_MILLI));
+  }
+}
@@ -39,6 +39,32 @@ abstract public class DeviceProfile {
 
   abstract public RecordingHint getDefaultRecordingHint();
 
+  /**
+   * @return typical milliseconds from Camera.takePicture()
+   *         until the shutter, or -1 if not known
+   */
+  public int getShutterLag() {
+    return(-1);
+  }
+
+  /**
+   * @return typical milliseconds from startPreview() until
+   *         the first preview frame, or -1 if not known;
+   *         CameraView holds off on taking a picture until
+   *         the preview has been running this long
+   */
+  public int getPreviewRestartTime() {
+    return(-1);
+  }
+
+  /**
+   * @return typical milliseconds for an auto-focus to
+   *         finish, or -1 if not known
+   */
+  public int getFocusTime() {
+    return(-1);
+  }
+
   private static volatile DeviceProfile SINGLETON=null;
 
   synchronized public static DeviceProfile getInstance(Context ctxt) {
@@ -47,22 +73,26 @@ abstract public class DeviceProfile {
 //       String.format("\"%s\" \"%s\"", Build.MANUFACTURER,
 //       Build.PRODUCT));
 
+      DeviceProfile base;
+
       if ("motorola".equalsIgnoreCase(Build.MANUFACTURER)
           && "XT890_rtgb".equals(Build.PRODUCT)) {
-        SINGLETON=new SimpleDeviceProfile.MotorolaRazrI();
+        base=new SimpleDeviceProfile.MotorolaRazrI();
       }
       else {
         int resource=findResource(ctxt);
 
         if (resource != 0) {
-          SINGLETON=
+          base=
               new SimpleDeviceProfile().load(ctxt.getResources()
                                                  .getXml(resource));
         }
         else {
-          SINGLETON=new SimpleDeviceProfile();
+          base=new SimpleDeviceProfile();
         }
       }
+
+      SINGLETON=new CalibratedDeviceProfile(ctxt, base);
     }
 
     return(SINGLETON);
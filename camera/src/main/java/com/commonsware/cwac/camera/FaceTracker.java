@@ -0,0 +1,289 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.annotation.TargetApi;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.hardware.Camera;
+import android.os.Build;
+import android.os.SystemClock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Turns the faces reported by the camera into faces in the
+ * CameraView's own coordinates, smoothed over time and
+ * tracked from one callback to the next, and delivered at
+ * no more than maxRate() times a second.
+ *
+ * Faces are mapped through a Matrix that is only rebuilt
+ * when the layout or orientation of the preview changes,
+ * into TrackedFace objects that are reused, so there is no
+ * allocation per callback once things are warmed up. As a
+ * result, the list and the faces in it are only good for
+ * the duration of onFacesTracked(); copy anything you need
+ * to keep.
+ *
+ * Pass one of these to setFaceTracker() on CameraView, then
+ * call startFaceDetection(). Requires API Level 14+.
+ */
+@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+public class FaceTracker implements Camera.FaceDetectionListener {
+  public static final float DEFAULT_SMOOTHING=0.5f;
+  public static final int DEFAULT_MAX_RATE=15;
+
+  /**
+   * Listener for tracked faces. Called on a background
+   * thread.
+   */
+  public interface Listener {
+    /**
+     * @param faces
+     *          the faces now in view, valid only until this
+     *          method returns
+     */
+    void onFacesTracked(List<TrackedFace> faces);
+  }
+
+  /**
+   * A face, in the CameraView's coordinates.
+   */
+  public static class TrackedFace {
+    /**
+     * Where the face is, smoothed over time
+     */
+    public final RectF bounds=new RectF();
+
+    /**
+     * Stays the same for as long as this face stays in view
+     */
+    public int trackingId;
+
+    /**
+     * The camera's confidence in the face, 1-100
+     */
+    public int score;
+
+    /**
+     * When this face was first seen, in
+     * SystemClock.uptimeMillis() terms
+     */
+    public long firstSeen;
+
+    int cameraId;
+    boolean seen;
+  }
+
+  private final Listener listener;
+  private final Matrix matrix=new Matrix();
+  private final RectF mapped=new RectF();
+  private final ArrayList<TrackedFace> active=new ArrayList<TrackedFace>();
+  private final ArrayList<TrackedFace> spare=new ArrayList<TrackedFace>();
+  private final List<TrackedFace> delivered=
+      Collections.unmodifiableList(active);
+  private volatile float smoothing=DEFAULT_SMOOTHING;
+  private volatile long minInterval=1000 / DEFAULT_MAX_RATE;
+  private volatile Camera.FaceDetectionListener passThrough=null;
+  private final Rect preview=new Rect();
+  private int displayOrientation=-1;
+  private boolean mirror=false;
+  private boolean isMatrixStale=true;
+  private int nextTrackingId=1;
+  private long lastDelivery=0;
+  private int lastDeliveredCount=0;
+
+  public FaceTracker(Listener listener) {
+    this.listener=listener;
+  }
+
+  /**
+   * How far each update moves a face toward where the camera
+   * now reports it, from 0 (not at all) to 1 (all the way,
+   * no smoothing).
+   */
+  public FaceTracker smoothing(float smoothing) {
+    this.smoothing=Math.max(0.01f, Math.min(1f, smoothing));
+
+    return(this);
+  }
+
+  /**
+   * Deliver faces at most this many times a second. Faces
+   * are still tracked and smoothed on every callback from
+   * the camera, and a change in the number of faces is
+   * always delivered right away.
+   */
+  public FaceTracker maxRate(int perSecond) {
+    this.minInterval=(perSecond > 0 ? 1000 / perSecond : 0);
+
+    return(this);
+  }
+
+  @Override
+  public void onFaceDetection(Camera.Face[] faces, Camera camera) {
+    if (passThrough != null) {
+      passThrough.onFaceDetection(faces, camera);
+    }
+
+    synchronized(this) {
+      if (isMatrixStale) {
+        rebuildMatrix();
+      }
+
+      if (preview.isEmpty()) {
+        return;
+      }
+
+      track(faces);
+
+      long now=SystemClock.uptimeMillis();
+
+      if (active.size() != lastDeliveredCount
+          || now - lastDelivery >= minInterval) {
+        lastDelivery=now;
+        lastDeliveredCount=active.size();
+        listener.onFacesTracked(delivered);
+      }
+    }
+  }
+
+  /**
+   * Called by CameraView when the preview is laid out or
+   * rotated.
+   */
+  synchronized void setGeometry(int left, int top, int right, int bottom,
+                                int displayOrientation, boolean mirror) {
+    if (preview.left != left || preview.top != top
+        || preview.right != right || preview.bottom != bottom
+        || this.displayOrientation != displayOrientation
+        || this.mirror != mirror) {
+      preview.set(left, top, right, bottom);
+      this.displayOrientation=displayOrientation;
+      this.mirror=mirror;
+      isMatrixStale=true;
+    }
+  }
+
+  /**
+   * Called by CameraView with whatever FaceDetectionListener
+   * the CameraHost provides, which still gets the raw faces.
+   */
+  void setPassThrough(Camera.FaceDetectionListener passThrough) {
+    this.passThrough=passThrough;
+  }
+
+  /**
+   * Called by CameraView when the camera goes away.
+   */
+  synchronized void clear() {
+    spare.addAll(active);
+    active.clear();
+    lastDeliveredCount=0;
+  }
+
+  // the camera's -1000..1000 space, mirrored for
+  // front-facing cameras and rotated for display, stretched
+  // over the preview
+
+  private void rebuildMatrix() {
+    matrix.setScale(mirror ? -1 : 1, 1);
+    matrix.postRotate(Math.max(0, displayOrientation));
+    matrix.postScale(preview.width() / 2000f, preview.height() / 2000f);
+    matrix.postTranslate(preview.left + preview.width() / 2f,
+                         preview.top + preview.height() / 2f);
+    isMatrixStale=false;
+  }
+
+  private void track(Camera.Face[] faces) {
+    float alpha=smoothing;
+
+    for (TrackedFace face : active) {
+      face.seen=false;
+    }
+
+    for (Camera.Face face : faces) {
+      mapped.set(face.rect.left, face.rect.top, face.rect.right,
+                 face.rect.bottom);
+      matrix.mapRect(mapped);
+
+      TrackedFace match=findMatch(face.id);
+
+      if (match == null) {
+        match=(spare.isEmpty() ? new TrackedFace() : spare.remove(spare.size() - 1));
+        match.trackingId=nextTrackingId++;
+        match.firstSeen=SystemClock.uptimeMillis();
+        match.bounds.set(mapped);
+        active.add(match);
+      }
+      else {
+        RectF b=match.bounds;
+
+        b.set(b.left + (mapped.left - b.left) * alpha,
+              b.top + (mapped.top - b.top) * alpha,
+              b.right + (mapped.right - b.right) * alpha,
+              b.bottom + (mapped.bottom - b.bottom) * alpha);
+      }
+
+      match.cameraId=face.id;
+      match.score=face.score;
+      match.seen=true;
+    }
+
+    // faces no longer in view go back to the pool
+
+    for (int i=active.size() - 1; i >= 0; i--) {
+      TrackedFace face=active.get(i);
+
+      if (!face.seen) {
+        active.remove(i);
+        spare.add(face);
+      }
+    }
+  }
+
+  // by the camera's own ID, where it has them, otherwise by
+  // the nearest unmatched face that overlaps this one
+
+  private TrackedFace findMatch(int cameraId) {
+    TrackedFace best=null;
+    float bestDistance=Float.MAX_VALUE;
+
+    for (TrackedFace face : active) {
+      if (face.seen) {
+        continue;
+      }
+
+      if (cameraId != -1 && face.cameraId == cameraId) {
+        return(face);
+      }
+
+      float dx=face.bounds.centerX() - mapped.centerX();
+      float dy=face.bounds.centerY() - mapped.centerY();
+      float distance=dx * dx + dy * dy;
+      float reach=Math.max(face.bounds.width(), face.bounds.height()) / 2;
+
+      if (distance <= reach * reach && distance < bestDistance
+          && (cameraId == -1 || face.cameraId == -1)) {
+        best=face;
+        bestDistance=distance;
+      }
+    }
+
+    return(best);
+  }
+}
@@ -0,0 +1,173 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Generates timestamped file names, like
+ * Photo_20140321_142501.jpg. Names handed out within the same
+ * second get a sequence number (Photo_20140321_142501_1.jpg,
+ * and so on), so pictures taken in a burst do not overwrite
+ * one another. The timestamp is only formatted once per
+ * second.
+ *
+ * Names are only unique within one FileNamer, so another
+ * FileNamer, or this one after the clock is set back, may
+ * hand out a name that is already in use. Use nextFile() to
+ * get a file that does not exist yet, or reserve() when the
+ * name may have come from somewhere else.
+ */
+public class FileNamer {
+  private static final ThreadLocal<SimpleDateFormat> FORMAT=
+      new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+          return(new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US));
+        }
+      };
+
+  private final String prefix;
+  private final String extension;
+  private final Pattern generated;
+  private long lastSecond=-1;
+  private String lastTimestamp=null;
+  private int sequence=0;
+  private File preparedDirectory=null;
+
+  /**
+   * @param prefix
+   *          start of each name (e.g., "Photo_")
+   * @param extension
+   *          end of each name, including the dot (e.g.,
+   *          ".jpg")
+   */
+  public FileNamer(String prefix, String extension) {
+    this.prefix=prefix;
+    this.extension=extension;
+    generated=
+        Pattern.compile(Pattern.quote(prefix) + "\\d{8}_\\d{6}(_\\d+)?"
+            + Pattern.quote(extension));
+  }
+
+  /**
+   * @return a name that this FileNamer has not handed out
+   *         before
+   */
+  synchronized public String nextName() {
+    long now=System.currentTimeMillis();
+    long second=now / 1000;
+
+    if (second == lastSecond) {
+      sequence++;
+    }
+    else {
+      // a new second, or the clock was set back, so format
+      // the timestamp afresh; nextFile() deals with any
+      // name that this makes collide
+
+      lastSecond=second;
+      lastTimestamp=FORMAT.get().format(new Date(now));
+      sequence=0;
+    }
+
+    if (sequence == 0) {
+      return(prefix + lastTimestamp + extension);
+    }
+
+    return(prefix + lastTimestamp + "_" + sequence + extension);
+  }
+
+  /**
+   * @return a new, empty file in the directory, named by
+   *         nextName(), skipping any names already in use
+   */
+  synchronized public File nextFile(File dir) {
+    prepareDirectory(dir);
+
+    while (true) {
+      File result=new File(dir, nextName());
+
+      if (claim(result)) {
+        return(result);
+      }
+    }
+  }
+
+  /**
+   * Readies a file for writing. If the name is one that
+   * nextName() hands out, the file is created, empty, so
+   * nothing else claims the same name, and if that name is
+   * in use already, a file from nextFile() is returned
+   * instead. Any other name was chosen on purpose, so that
+   * file is returned untouched, to be overwritten.
+   */
+  synchronized public File reserve(File file) {
+    if (!isGenerated(file.getName())) {
+      return(file);
+    }
+
+    if (claim(file)) {
+      return(file);
+    }
+
+    return(nextFile(file.getParentFile()));
+  }
+
+  /**
+   * @return true if the name looks like one from
+   *         nextName(), and so names a file that reserve()
+   *         may have created
+   */
+  public boolean isGenerated(String name) {
+    return(generated.matcher(name).matches());
+  }
+
+  /**
+   * Creates the file, empty, unless it exists already, so
+   * nothing else claims the same name.
+   *
+   * @return true if the file is ours to write, or if that
+   *         cannot be told, in which case writing the file
+   *         will report the problem
+   */
+  private static boolean claim(File file) {
+    try {
+      return(file.createNewFile());
+    }
+    catch (IOException e) {
+      return(true);
+    }
+  }
+
+  /**
+   * Creates the directory, if this FileNamer has not done so
+   * already for this directory, rather than calling mkdirs()
+   * for every file.
+   */
+  synchronized public File prepareDirectory(File dir) {
+    if (!dir.equals(preparedDirectory)) {
+      dir.mkdirs();
+      preparedDirectory=dir;
+    }
+
+    return(dir);
+  }
+}
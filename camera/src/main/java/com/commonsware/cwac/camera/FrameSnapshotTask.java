@@ -0,0 +1,105 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.util.Log;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import com.android.mms.exif.ExifInterface;
+import com.android.mms.exif.ExifTag;
+
+/**
+ * Turns a copy of an NV21 preview frame into a JPEG, tagged
+ * with the orientation that a real picture would have had,
+ * and hands it to ImageCleanupTask, for snapshots taken
+ * while recording from the preview. Runs on a thread of its
+ * own, so the camera thread keeps delivering frames to the
+ * encoder.
+ */
+class FrameSnapshotTask implements Runnable {
+  private final Context ctxt;
+  private final byte[] frame;
+  private final int width;
+  private final int height;
+  private final int orientation;
+  private final CameraCapabilities capabilities;
+  private final PictureTransaction xact;
+
+  FrameSnapshotTask(Context ctxt, byte[] frame, int width, int height,
+                    int orientation, CameraCapabilities capabilities,
+                    PictureTransaction xact) {
+    this.ctxt=ctxt.getApplicationContext();
+    this.frame=frame;
+    this.width=width;
+    this.height=height;
+    this.orientation=orientation;
+    this.capabilities=capabilities;
+    this.xact=xact;
+  }
+
+  @Override
+  public void run() {
+    try {
+      YuvImage yuv=new YuvImage(frame, ImageFormat.NV21, width, height, null);
+      ByteArrayOutputStream jpeg=new ByteArrayOutputStream(frame.length / 4);
+
+      yuv.compressToJpeg(new Rect(0, 0, width, height), xact.quality, jpeg);
+      xact.mark(PictureTransaction.MARK_PICTURE_TAKEN);
+
+      new ImageCleanupTask(ctxt, withOrientation(jpeg.toByteArray()),
+                           capabilities, xact).run();
+    }
+    catch (Throwable t) {
+      Log.e("CWAC-Camera", "Exception taking snapshot from preview", t);
+    }
+  }
+
+  // the frame is in the camera's native orientation, so tag
+  // it the way the camera tags real pictures
+
+  private byte[] withOrientation(byte[] jpeg) {
+    if (orientation == 0) {
+      return(jpeg);
+    }
+
+    try {
+      ExifInterface exif=new ExifInterface();
+      ExifTag tag=
+          exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                        ExifInterface.getOrientationValueForRotation(orientation));
+
+      if (tag == null) {
+        return(jpeg);
+      }
+
+      exif.setTag(tag);
+
+      ByteArrayOutputStream out=new ByteArrayOutputStream(jpeg.length + 1024);
+
+      exif.writeExif(jpeg, out);
+
+      return(out.toByteArray());
+    }
+    catch (IOException e) {
+      Log.e("CWAC-Camera", "Exception writing EXIF orientation", e);
+
+      return(jpeg);
+    }
+  }
+}
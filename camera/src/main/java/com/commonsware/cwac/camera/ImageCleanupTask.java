@@ -14,157 +14,569 @@
 
 package com.commonsware.cwac.camera;
 
-import android.annotation.TargetApi;
-import android.app.ActivityManager;
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
-import android.hardware.Camera;
-import android.os.Build;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.SystemClock;
 import android.util.Log;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import com.android.mms.exif.ExifInterface;
+import com.android.mms.exif.ExifTag;
 
 public class ImageCleanupTask  {
+  private static final int PROXY_SCALE=4;
+  private static final int MIN_QUALITY=30;
+  private static final int MAX_QUALITY_PROBES=7;
+  private static final int EXIF_NORMAL=1;
+  private static final int EXIF_FLIP_HORIZONTAL=2;
+  private static final int EXIF_ROTATE_180=3;
+  private static final int EXIF_FLIP_VERTICAL=4;
+  private static final int EXIF_TRANSPOSE=5;
+  private static final int EXIF_TRANSVERSE=7;
+  private static final int BANDED_BYTES_PER_PIXEL=2; // RGB_565
+  private static final int CLEANUP_BYTES_PER_PIXEL=8; // 2 x ARGB_8888
+  private static final int MIN_BAND_HEIGHT=16;
+  private static final int EXIF_SLACK=1024;
   private byte[] data;
-  private int cameraId;
+  private CameraCapabilities capabilities;
   private PictureTransaction xact=null;
   private boolean applyMatrix=true;
+  private long cleanupBudget;
 
-  ImageCleanupTask(Context ctxt, byte[] data, int cameraId,
-                   PictureTransaction xact) {
+  ImageCleanupTask(Context ctxt, byte[] data,
+                   CameraCapabilities capabilities, PictureTransaction xact) {
     this.data=data;
-    this.cameraId=cameraId;
+    this.capabilities=capabilities;
     this.xact=xact;
 
-    float heapPct=(float)data.length / calculateHeapSize(ctxt);
+    int heapSize=CameraUtils.getHeapSize(ctxt);
 
-    applyMatrix=(heapPct < xact.host.maxPictureCleanupHeapUsage());
+    cleanupBudget=
+        (long)(heapSize * (double)xact.host.maxPictureCleanupHeapUsage());
+
+    // what the in-heap transform needs is the decoded
+    // picture and its transformed copy, not the JPEG
+
+    BitmapFactory.Options bounds=new BitmapFactory.Options();
+
+    bounds.inJustDecodeBounds=true;
+    BitmapFactory.decodeByteArray(data, 0, data.length, bounds);
+
+    if (bounds.outWidth > 0 && bounds.outHeight > 0) {
+      applyMatrix=
+          ((long)bounds.outWidth * bounds.outHeight
+              * CLEANUP_BYTES_PER_PIXEL <= cleanupBudget);
+    }
+    else {
+      applyMatrix=(data.length < cleanupBudget);
+    }
   }
 
   public void run() {
-    Camera.CameraInfo info=new Camera.CameraInfo();
-
-    Camera.getCameraInfo(cameraId, info);
+    xact.mark(PictureTransaction.MARK_CLEANUP_START);
 
     Matrix matrix=null;
     Bitmap cleaned=null;
     ExifInterface exif=null;
+    int mirrorOrientation=EXIF_NORMAL;
+    boolean transformed=false;
 
     int imageOrientation=0;
-    if (applyMatrix) {
-      if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-        if (xact.host.getDeviceProfile().portraitFFCFlipped()
-            && (xact.displayOrientation == 90 || xact.displayOrientation == 270)) {
-          matrix=flip(new Matrix());
-        }
-        else if (xact.mirrorFFC()) {
-          matrix=mirror(new Matrix());
-        }
+
+    if (capabilities.isFrontFacing()) {
+      if (xact.host.getDeviceProfile().portraitFFCFlipped()
+          && (xact.displayOrientation == 90 || xact.displayOrientation == 270)) {
+        matrix=flip(new Matrix());
+        mirrorOrientation=EXIF_ROTATE_180;
       }
+      else if (xact.mirrorFFC()) {
+        matrix=mirror(new Matrix());
+        mirrorOrientation=EXIF_FLIP_HORIZONTAL;
+      }
+    }
 
-      try {
-        if (xact.host.getDeviceProfile().useDeviceOrientation()) {
-          imageOrientation=xact.displayOrientation;
-        }
-        else {
-          exif=new ExifInterface();
-          exif.readExif(data);
-
-          Integer exifOrientation=
-              exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
-
-          if (exifOrientation != null) {
-            if (exifOrientation == 6) {
-              imageOrientation=90;
-            }
-            else if (exifOrientation == 8) {
-              imageOrientation=270;
-            }
-            else if (exifOrientation == 3) {
-              imageOrientation=180;
-            }
-            else if (exifOrientation == 1) {
-              imageOrientation=0;
-            }
-            else {
-              // imageOrientation=
-              // xact.host.getDeviceProfile().getDefaultOrientation();
-              //
-              // if (imageOrientation == -1) {
-              // imageOrientation=xact.displayOrientation;
-              // }
-            }
-          }
-        }
+    try {
+      if (xact.host.getDeviceProfile().useDeviceOrientation()) {
+        imageOrientation=xact.displayOrientation;
+      }
+      else {
+        exif=new ExifInterface();
+        exif.readExif(data);
+
+        Integer exifOrientation=
+            exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
 
-        if (imageOrientation != 0) {
-          matrix=
-              rotate((matrix == null ? new Matrix() : matrix),
-                     imageOrientation);
+        if (exifOrientation != null) {
+          if (exifOrientation == 6) {
+            imageOrientation=90;
+          }
+          else if (exifOrientation == 8) {
+            imageOrientation=270;
+          }
+          else if (exifOrientation == 3) {
+            imageOrientation=180;
+          }
+          else if (exifOrientation == 1) {
+            imageOrientation=0;
+          }
+          else {
+            // imageOrientation=
+            // xact.host.getDeviceProfile().getDefaultOrientation();
+            //
+            // if (imageOrientation == -1) {
+            // imageOrientation=xact.displayOrientation;
+            // }
+          }
         }
       }
-      catch (IOException e) {
-        Log.e("CWAC-Camera", "Exception parsing JPEG", e);
-        // TODO: ripple to client
+
+      if (imageOrientation != 0) {
+        matrix=
+            rotate((matrix == null ? new Matrix() : matrix),
+                   imageOrientation);
       }
+    }
+    catch (IOException e) {
+      Log.e("CWAC-Camera", "Exception parsing JPEG", e);
+      // TODO: ripple to client
+    }
+
+    if (matrix != null && xact.needBitmap) {
+      long start=System.nanoTime();
 
-      if (matrix != null && xact.needBitmap) {
+      if (applyMatrix) {
         Bitmap original=
             BitmapFactory.decodeByteArray(data, 0, data.length);
+        long decoded=System.nanoTime();
 
+        xact.decodeNanos+=decoded - start;
+        start=decoded;
         cleaned=
             Bitmap.createBitmap(original, 0, 0, original.getWidth(),
                                 original.getHeight(), matrix, true);
         original.recycle();
+        transformed=true;
       }
+      else {
+        cleaned=transformInBands(matrix);
+        transformed=(cleaned != null);
+      }
+
+      xact.rotateNanos+=System.nanoTime() - start;
+    }
+
+    if (matrix != null && !applyMatrix && !transformed) {
+      // too big to transform within the heap budget, so just
+      // tell viewers how to show it, losslessly
+
+      short exifValue=
+          getExifOrientation(mirrorOrientation, imageOrientation);
+      long start=System.nanoTime();
+
+      data=withOrientationTag(exif, exifValue);
+      xact.rotateNanos+=System.nanoTime() - start;
+    }
+
+    if (xact.needBitmap && cleaned == null) {
+      long start=System.nanoTime();
+
+      cleaned=BitmapFactory.decodeByteArray(data, 0, data.length);
+      xact.decodeNanos+=System.nanoTime() - start;
+    }
+
+    // before the picture is handed off or re-encoded, from the
+    // bitmap if there is one, applying the matrix only if that
+    // bitmap has not had it applied already
+
+    if (!xact.renditions.isEmpty()) {
+      renderRenditions(cleaned, (transformed ? null : matrix));
     }
 
     if (xact.needBitmap) {
-      if (cleaned == null) {
-        cleaned=BitmapFactory.decodeByteArray(data, 0, data.length);
-      }
+      long start=System.nanoTime();
 
       xact.host.saveImage(xact, cleaned);
+      xact.saveNanos+=System.nanoTime() - start;
     }
 
     if (xact.needByteArray) {
-      if (cleaned != null) {
-        ByteArrayOutputStream out=new ByteArrayOutputStream();
-
-        // if (exif == null) {
-        cleaned.compress(Bitmap.CompressFormat.JPEG, 100, out);
-        // }
-        // else {
-        // exif.deleteTag(ExifInterface.TAG_ORIENTATION);
-        //
-        // try {
-        // exif.writeExif(cleaned, out);
-        // }
-        // catch (IOException e) {
-        // Log.e("CWAC-Camera", "Exception writing to JPEG",
-        // e);
-        // // TODO: ripple to client
-        // }
-        // }
-
-        data=out.toByteArray();
-
-        try {
-          out.close();
+      OutputStream sink=null;
+
+      try {
+        sink=xact.host.openImageStream(xact);
+      }
+      catch (IOException e) {
+        xact.host.handleException(e);
+      }
+
+      if (sink != null) {
+        writeToStream(sink, (applyMatrix || transformed ? cleaned : null),
+                      imageOrientation);
+      }
+      else {
+        if (cleaned != null && (applyMatrix || transformed)) {
+          // the re-encoded JPEG should be about the size of
+          // the original, so start there rather than growing
+          // the buffer a copy at a time
+
+          ByteArrayOutputStream out=
+              new ByteArrayOutputStream(data.length);
+
+          encode(cleaned, out);
+          data=out.toByteArray();
+
+          try {
+            out.close();
+          }
+          catch (IOException e) {
+            Log.e(CameraView.TAG, "Exception in closing a BAOS???", e);
+          }
         }
-        catch (IOException e) {
-          Log.e(CameraView.TAG, "Exception in closing a BAOS???", e);
+        else {
+          recordUnencoded();
         }
-      }
 
-      xact.host.saveImage(xact, data, imageOrientation);
+        long start=System.nanoTime();
+
+        xact.host.saveImage(xact, data, imageOrientation);
+        xact.saveNanos+=System.nanoTime() - start;
+      }
     }
 
     System.gc();
+
+    xact.mark(PictureTransaction.MARK_CLEANUP_END);
+
+    if (xact.metrics != null) {
+      xact.metrics.record(xact);
+    }
+  }
+
+  // one decode, at the coarsest sample size that still
+  // covers the largest rendition (skipped if the picture
+  // was already decoded), then each rendition is scaled
+  // down from the one before it, so only two bitmaps are
+  // alive at a time
+
+  private void renderRenditions(Bitmap decoded, Matrix matrix) {
+    ArrayList<Rendition> renditions=
+        new ArrayList<Rendition>(xact.renditions);
+
+    Collections.sort(renditions, new Comparator<Rendition>() {
+      @Override
+      public int compare(Rendition lhs, Rendition rhs) {
+        return(rhs.getMaxDimension() - lhs.getMaxDimension());
+      }
+    });
+
+    Bitmap current=decoded;
+
+    if (current == null) {
+      current=decodeForRenditions(renditions.get(0).getMaxDimension());
+
+      if (current == null) {
+        return;
+      }
+    }
+
+    for (Rendition rendition : renditions) {
+      Bitmap scaled=scaleTo(current, rendition.getMaxDimension(), matrix);
+
+      matrix=null; // only the first step rotates
+
+      if (scaled != current) {
+        if (current != decoded) {
+          current.recycle();
+        }
+
+        current=scaled;
+      }
+
+      ByteArrayOutputStream out=new ByteArrayOutputStream();
+
+      current.compress(rendition.getFormat(), rendition.getQuality(), out);
+      xact.host.saveRendition(xact, rendition, out.toByteArray());
+    }
+
+    if (current != decoded) {
+      current.recycle();
+    }
+  }
+
+  private Bitmap decodeForRenditions(int largestRendition) {
+    BitmapFactory.Options opts=new BitmapFactory.Options();
+
+    opts.inJustDecodeBounds=true;
+    BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+
+    int fullMax=Math.max(opts.outWidth, opts.outHeight);
+
+    if (fullMax <= 0) {
+      return(null);
+    }
+
+    int largest=Math.min(largestRendition, fullMax);
+
+    opts=new BitmapFactory.Options();
+    opts.inSampleSize=1;
+
+    while (fullMax / (opts.inSampleSize * 2) >= largest) {
+      opts.inSampleSize*=2;
+    }
+
+    return(BitmapFactory.decodeByteArray(data, 0, data.length, opts));
+  }
+
+  private Bitmap scaleTo(Bitmap bitmap, int maxDimension, Matrix matrix) {
+    int width=bitmap.getWidth();
+    int height=bitmap.getHeight();
+    int max=Math.max(width, height);
+    float scale=1.0f;
+
+    if (max > maxDimension) {
+      scale=(float)maxDimension / max;
+    }
+
+    if (scale == 1.0f && matrix == null) {
+      return(bitmap);
+    }
+
+    Matrix transform=new Matrix();
+
+    if (matrix != null) {
+      transform.set(matrix);
+    }
+
+    transform.postScale(scale, scale);
+
+    return(Bitmap.createBitmap(bitmap, 0, 0, width, height, transform,
+                               true));
+  }
+
+  private void writeToStream(OutputStream sink, Bitmap cleaned,
+                             int imageOrientation) {
+    long start=System.nanoTime();
+    long encodeBefore=xact.encodeNanos;
+
+    try {
+      try {
+        if (cleaned != null) {
+          encode(cleaned, sink);
+        }
+        else {
+          CameraUtils.writeFully(sink, data);
+          recordUnencoded();
+        }
+
+        sink.flush();
+      }
+      finally {
+        sink.close();
+
+        // encoding is counted separately
+
+        xact.saveNanos+=
+            System.nanoTime() - start - (xact.encodeNanos - encodeBefore);
+      }
+
+      xact.host.onImageStreamClosed(xact, imageOrientation);
+    }
+    catch (IOException e) {
+      xact.host.handleException(e);
+    }
+  }
+
+  // decodes the picture a band of rows at a time, drawing
+  // each band, transformed, into an RGB_565 result, so the
+  // heap only needs room for the result and one band;
+  // returns null if even that does not fit in the budget
+
+  private Bitmap transformInBands(Matrix matrix) {
+    BitmapRegionDecoder decoder=null;
+    Bitmap result=null;
+
+    try {
+      decoder=BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+
+      int width=decoder.getWidth();
+      int height=decoder.getHeight();
+      RectF bounds=new RectF(0, 0, width, height);
+      Matrix transform=new Matrix();
+
+      transform.set(matrix);
+      transform.mapRect(bounds);
+      transform.postTranslate(-bounds.left, -bounds.top);
+
+      int outWidth=Math.round(bounds.width());
+      int outHeight=Math.round(bounds.height());
+      int bandHeight=
+          getBandHeight(width, height, outWidth, outHeight, cleanupBudget);
+
+      if (bandHeight < MIN_BAND_HEIGHT) {
+        return(null);
+      }
+
+      result=Bitmap.createBitmap(outWidth, outHeight, Bitmap.Config.RGB_565);
+
+      Canvas canvas=new Canvas(result);
+      Paint paint=new Paint(Paint.FILTER_BITMAP_FLAG);
+      BitmapFactory.Options opts=new BitmapFactory.Options();
+      Matrix bandTransform=new Matrix();
+
+      opts.inPreferredConfig=Bitmap.Config.RGB_565;
+
+      for (int top=0; top < height; top+=bandHeight) {
+        Rect region=new Rect(0, top, width, Math.min(height, top + bandHeight));
+        Bitmap band=decoder.decodeRegion(region, opts);
+
+        if (band == null) {
+          result.recycle();
+
+          return(null);
+        }
+
+        bandTransform.setTranslate(0, top);
+        bandTransform.postConcat(transform);
+        canvas.drawBitmap(band, bandTransform, paint);
+        band.recycle();
+      }
+    }
+    catch (IOException e) {
+      Log.e("CWAC-Camera", "Exception decoding JPEG bands", e);
+
+      if (result != null) {
+        result.recycle();
+      }
+
+      return(null);
+    }
+    finally {
+      if (decoder != null) {
+        decoder.recycle();
+      }
+    }
+
+    return(result);
+  }
+
+  // as many rows as fit in the budget next to the RGB_565
+  // result, which has to be held in full
+
+  static int getBandHeight(int width, int height, int outWidth,
+                           int outHeight, long budget) {
+    long outputBytes=(long)outWidth * outHeight * BANDED_BYTES_PER_PIXEL;
+    long rowBytes=(long)width * BANDED_BYTES_PER_PIXEL;
+
+    return((int)Math.max(0, Math.min(height, (budget - outputBytes)
+        / rowBytes)));
+  }
+
+  private byte[] withOrientationTag(ExifInterface exif, short value) {
+    try {
+      if (exif == null) {
+        exif=new ExifInterface();
+        exif.readExif(data);
+      }
+
+      Integer current=exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+
+      if (current != null && current == value) {
+        return(data);
+      }
+
+      ExifTag tag=exif.buildTag(ExifInterface.TAG_ORIENTATION, value);
+
+      if (tag == null) {
+        return(data);
+      }
+
+      exif.setTag(tag);
+
+      ByteArrayOutputStream out=
+          new ByteArrayOutputStream(data.length + EXIF_SLACK);
+
+      exif.writeExif(data, out);
+
+      return(out.toByteArray());
+    }
+    catch (IOException e) {
+      Log.e("CWAC-Camera", "Exception writing EXIF orientation", e);
+
+      return(data);
+    }
+  }
+
+  private void encode(Bitmap bitmap, OutputStream out) {
+    long start=SystemClock.uptimeMillis();
+    long startNanos=System.nanoTime();
+    int quality=xact.quality;
+
+    if (xact.targetSize > 0) {
+      quality=findQuality(bitmap);
+    }
+
+    CountingOutputStream counter=new CountingOutputStream(out);
+
+    bitmap.compress(xact.format, quality, counter);
+    xact.encodeTime=SystemClock.uptimeMillis() - start;
+    xact.encodeNanos+=System.nanoTime() - startNanos;
+    xact.encodedSize=(int)counter.count;
+    xact.savedFormat=xact.format;
+  }
+
+  private void recordUnencoded() {
+    xact.encodeTime=0;
+    xact.encodedSize=data.length;
+    xact.savedFormat=Bitmap.CompressFormat.JPEG;
+  }
+
+  // bounded binary search for the highest quality whose
+  // output, extrapolated from a downsampled proxy, fits
+  // the target size
+
+  private int findQuality(Bitmap bitmap) {
+    int proxyWidth=Math.max(1, bitmap.getWidth() / PROXY_SCALE);
+    int proxyHeight=Math.max(1, bitmap.getHeight() / PROXY_SCALE);
+    Bitmap proxy=
+        Bitmap.createScaledBitmap(bitmap, proxyWidth, proxyHeight, true);
+    double scale=
+        (double)bitmap.getWidth() * bitmap.getHeight()
+            / (proxyWidth * proxyHeight);
+    int low=Math.min(MIN_QUALITY, xact.quality);
+    int high=xact.quality;
+    int result=low;
+
+    for (int i=0; i < MAX_QUALITY_PROBES && low <= high; i++) {
+      int mid=(low + high) >>> 1;
+      CountingOutputStream counter=new CountingOutputStream(null);
+
+      proxy.compress(xact.format, mid, counter);
+
+      if (counter.count * scale <= xact.targetSize) {
+        result=mid;
+        low=mid + 1;
+      }
+      else {
+        high=mid - 1;
+      }
+    }
+
+    if (proxy != bitmap) {
+      proxy.recycle();
+    }
+
+    return(result);
   }
 
   // from http://stackoverflow.com/a/8347956/115145
@@ -196,18 +608,62 @@ public class ImageCleanupTask  {
     return(input);
   }
 
-  @TargetApi(Build.VERSION_CODES.HONEYCOMB)
-  private static int calculateHeapSize(Context ctxt) {
-    ActivityManager am=
-        (ActivityManager)ctxt.getSystemService(Context.ACTIVITY_SERVICE);
-    int memoryClass=am.getMemoryClass();
+  // the EXIF orientation for the mirror or flip followed by
+  // the rotation, so the fallback keeps the mirror
+
+  private static short getExifOrientation(int mirrorOrientation,
+                                          int rotation) {
+    if (mirrorOrientation == EXIF_ROTATE_180) {
+      // flip() is a half turn, not a mirror
+      return(ExifInterface.getOrientationValueForRotation(rotation + 180));
+    }
+
+    if (mirrorOrientation == EXIF_FLIP_HORIZONTAL) {
+      switch (rotation) {
+        case 90:
+          return((short)EXIF_TRANSVERSE);
+
+        case 180:
+          return((short)EXIF_FLIP_VERTICAL);
+
+        case 270:
+          return((short)EXIF_TRANSPOSE);
+
+        default:
+          return((short)EXIF_FLIP_HORIZONTAL);
+      }
+    }
+
+    return(ExifInterface.getOrientationValueForRotation(rotation));
+  }
+
+  // counts bytes on their way through, or just counts them
+  // if there is nowhere for them to go
+
+  private static class CountingOutputStream extends OutputStream {
+    private final OutputStream out;
+    long count=0;
 
-    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-      if ((ctxt.getApplicationInfo().flags & ApplicationInfo.FLAG_LARGE_HEAP) != 0) {
-        memoryClass=am.getLargeMemoryClass();
+    CountingOutputStream(OutputStream out) {
+      this.out=out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      count++;
+
+      if (out != null) {
+        out.write(b);
       }
     }
 
-    return(memoryClass * 1048576); // MB * bytes in MB
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      count+=len;
+
+      if (out != null) {
+        out.write(b, off, len);
+      }
+    }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,353 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Writes images to disk on a background thread of its own,
+ * so the thread that hands over the image (e.g., the
+ * camera thread) does not wait on the disk, and in
+ * particular on fsync().
+ *
+ * Images are written in the order that they are enqueued.
+ * If more than maxQueuedBytes() worth of images are waiting
+ * to be written, enqueue() blocks until enough of them have
+ * been written, so a burst of pictures cannot run the app
+ * out of heap.
+ */
+public class ImageSaveQueue {
+  public static final int DEFAULT_MAX_QUEUED_BYTES=32 * 1048576;
+  private static final long IDLE_TIMEOUT_MS=10000;
+
+  /**
+   * How hard to try to ensure that an image is really on
+   * disk before reporting it as saved.
+   */
+  public enum Durability {
+    /**
+     * Close the file and let the OS write it out whenever it
+     * wants. Fastest, but images may be lost if the device
+     * loses power shortly after they are saved.
+     */
+    NONE,
+
+    /**
+     * fsync() each file before reporting it as saved. This is
+     * the default, and what SimpleCameraHost did
+     * historically.
+     */
+    PER_FILE,
+
+    /**
+     * fsync() files in groups, when enough files are waiting
+     * or the oldest one has waited long enough, as set by
+     * groupSync(). Images are reported as saved after their
+     * group has been synced.
+     */
+    GROUPED
+  }
+
+  /**
+   * Listener for the outcome of saving an image. Methods
+   * are called on the queue's own background thread.
+   */
+  public interface Listener {
+    void onImageSaved(PictureTransaction xact, File file);
+
+    void onImageSaveFailed(PictureTransaction xact, File file,
+                           IOException e);
+  }
+
+  private final Object lock=new Object();
+  private final ArrayDeque<Job> jobs=new ArrayDeque<Job>();
+  private final ArrayList<Job> unsynced=new ArrayList<Job>();
+  private volatile Durability durability=Durability.PER_FILE;
+  private volatile int groupFiles=8;
+  private volatile long groupMillis=1000;
+  private long maxQueuedBytes=DEFAULT_MAX_QUEUED_BYTES;
+  private long queuedBytes=0;
+  private long groupDeadline=0;
+  private Thread worker=null;
+
+  public ImageSaveQueue durability(Durability durability) {
+    this.durability=durability;
+
+    return(this);
+  }
+
+  /**
+   * Switches to Durability.GROUPED, syncing when this many
+   * files are waiting, or when the oldest has waited this
+   * long, whichever comes first.
+   */
+  public ImageSaveQueue groupSync(int files, long millis) {
+    groupFiles=Math.max(1, files);
+    groupMillis=Math.max(0, millis);
+    durability=Durability.GROUPED;
+
+    return(this);
+  }
+
+  /**
+   * Sets how many bytes of images can be waiting to be
+   * written before enqueue() blocks. An image bigger than
+   * this is still accepted, once the queue is empty.
+   */
+  public ImageSaveQueue maxQueuedBytes(long maxQueuedBytes) {
+    synchronized(lock) {
+      this.maxQueuedBytes=maxQueuedBytes;
+      lock.notifyAll();
+    }
+
+    return(this);
+  }
+
+  /**
+   * @return the number of bytes of images waiting to be
+   *         written
+   */
+  public long getQueuedBytes() {
+    synchronized(lock) {
+      return(queuedBytes);
+    }
+  }
+
+  /**
+   * Queues an image to be written to the given file, over
+   * anything already in it (such as the empty file that
+   * FileNamer.reserve() creates). Blocks if too many bytes
+   * are already waiting to be written.
+   *
+   * @param listener
+   *          told about the outcome; may be null
+   */
+  public void enqueue(PictureTransaction xact, byte[] data, File file,
+                      Listener listener) {
+    synchronized(lock) {
+      while (queuedBytes > 0
+          && queuedBytes + data.length > maxQueuedBytes) {
+        try {
+          lock.wait();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+
+      jobs.add(new Job(xact, data, file, listener));
+      queuedBytes+=data.length;
+
+      if (worker == null) {
+        startWorkerLocked();
+      }
+      else {
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private void startWorkerLocked() {
+    worker=new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    }, "CWAC_CAMERA_SAVE");
+    worker.start();
+  }
+
+  private void drain() {
+    try {
+      while (true) {
+        Job job=nextJob();
+
+        if (job != null) {
+          write(job);
+        }
+        else if (!unsynced.isEmpty()) {
+          syncGroup();
+        }
+        else {
+          return;
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      syncGroup();
+    }
+    finally {
+      // however this thread ends, it must not leave the queue
+      // thinking that it is still being drained, or enqueue()
+      // could wait forever
+
+      synchronized(lock) {
+        if (worker == Thread.currentThread()) {
+          worker=null;
+
+          if (!jobs.isEmpty()) {
+            startWorkerLocked();
+          }
+        }
+      }
+    }
+  }
+
+  // returns null when a group is due to be synced, or when
+  // the worker has been idle long enough to exit
+
+  private Job nextJob() throws InterruptedException {
+    synchronized(lock) {
+      long idleDeadline=SystemClock.uptimeMillis() + IDLE_TIMEOUT_MS;
+
+      while (jobs.isEmpty()) {
+        long now=SystemClock.uptimeMillis();
+        long deadline=unsynced.isEmpty() ? idleDeadline : groupDeadline;
+
+        if (now >= deadline) {
+          if (unsynced.isEmpty()) {
+            worker=null;
+          }
+
+          return(null);
+        }
+
+        lock.wait(deadline - now);
+      }
+
+      return(jobs.poll());
+    }
+  }
+
+  private void write(Job job) {
+    Durability mode=durability;
+    FileOutputStream fos=null;
+    int length=job.data.length;
+
+    try {
+      fos=new FileOutputStream(job.file);
+      CameraUtils.writeFully(fos, job.data);
+      job.data=null;
+
+      if (mode == Durability.GROUPED) {
+        if (unsynced.isEmpty()) {
+          groupDeadline=SystemClock.uptimeMillis() + groupMillis;
+        }
+
+        job.stream=fos;
+        unsynced.add(job);
+      }
+      else {
+        if (mode == Durability.PER_FILE) {
+          fos.getFD().sync();
+        }
+
+        fos.close();
+        job.succeeded();
+      }
+    }
+    catch (IOException e) {
+      closeQuietly(fos);
+      job.failed(e);
+    }
+    finally {
+      synchronized(lock) {
+        queuedBytes-=length;
+        lock.notifyAll();
+      }
+    }
+
+    if (!unsynced.isEmpty()
+        && (mode != Durability.GROUPED || unsynced.size() >= groupFiles || SystemClock.uptimeMillis() >= groupDeadline)) {
+      syncGroup();
+    }
+  }
+
+  private void syncGroup() {
+    for (Job job : unsynced) {
+      try {
+        job.stream.getFD().sync();
+        job.stream.close();
+        job.succeeded();
+      }
+      catch (IOException e) {
+        closeQuietly(job.stream);
+        job.failed(e);
+      }
+
+      job.stream=null;
+    }
+
+    unsynced.clear();
+  }
+
+  private static void closeQuietly(FileOutputStream fos) {
+    if (fos != null) {
+      try {
+        fos.close();
+      }
+      catch (IOException e) {
+        // already failing, so nothing more to do
+      }
+    }
+  }
+
+  private static class Job {
+    final PictureTransaction xact;
+    final File file;
+    final Listener listener;
+    byte[] data;
+    FileOutputStream stream=null;
+
+    Job(PictureTransaction xact, byte[] data, File file, Listener listener) {
+      this.xact=xact;
+      this.data=data;
+      this.file=file;
+      this.listener=listener;
+    }
+
+    // the listener is app code, which must not take the
+    // worker down with it
+
+    void succeeded() {
+      if (listener != null) {
+        try {
+          listener.onImageSaved(xact, file);
+        }
+        catch (Throwable t) {
+          Log.e("CWAC-Camera", "Exception in onImageSaved()", t);
+        }
+      }
+    }
+
+    void failed(IOException e) {
+      if (listener != null) {
+        try {
+          listener.onImageSaveFailed(xact, file, e);
+        }
+        catch (Throwable t) {
+          Log.e("CWAC-Camera", "Exception in onImageSaveFailed()", t);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+/**
+ * Histogram of latencies, in microseconds, with log-linear
+ * buckets: each power of two is split into 16 buckets, so
+ * any recorded value is reported to within about 6%.
+ * Recording does not allocate, so it is safe to do on hot
+ * paths.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS=4;
+  private static final int SUB_BUCKET_COUNT=1 << SUB_BUCKET_BITS;
+  private static final int MAX_SHIFT=32; // up to ~2^36us, or ~19 hours
+  private static final long MAX_VALUE=
+      ((long)(2 * SUB_BUCKET_COUNT) << MAX_SHIFT) - 1;
+
+  private final long[] counts=
+      new long[(MAX_SHIFT + 2) * SUB_BUCKET_COUNT];
+  private long count=0;
+  private long total=0;
+  private long min=Long.MAX_VALUE;
+  private long max=0;
+
+  /**
+   * Records one latency.
+   *
+   * @param nanos
+   *          the latency, in nanoseconds (e.g., the
+   *          difference between two System.nanoTime() calls)
+   */
+  public void recordNanos(long nanos) {
+    record(nanos / 1000);
+  }
+
+  /**
+   * Records one latency.
+   *
+   * @param micros
+   *          the latency, in microseconds; negative values
+   *          are ignored
+   */
+  synchronized public void record(long micros) {
+    if (micros < 0) {
+      return;
+    }
+
+    long value=Math.min(micros, MAX_VALUE);
+
+    counts[indexOf(value)]++;
+    count++;
+    total+=value;
+    min=Math.min(min, value);
+    max=Math.max(max, value);
+  }
+
+  synchronized public long getCount() {
+    return(count);
+  }
+
+  /**
+   * @return the smallest recorded value, in microseconds,
+   *         or 0 if nothing has been recorded
+   */
+  synchronized public long getMin() {
+    return(count == 0 ? 0 : min);
+  }
+
+  /**
+   * @return the largest recorded value, in microseconds
+   */
+  synchronized public long getMax() {
+    return(max);
+  }
+
+  /**
+   * @return the mean of the recorded values, in
+   *         microseconds
+   */
+  synchronized public double getMean() {
+    return(count == 0 ? 0 : (double)total / count);
+  }
+
+  /**
+   * @param percentile
+   *          0-100 (e.g., 99.0 for the 99th percentile)
+   * @return the value at that percentile, in microseconds,
+   *         to within the precision of the bucket
+   */
+  synchronized public long getValueAtPercentile(double percentile) {
+    if (count == 0) {
+      return(0);
+    }
+
+    long target=
+        Math.max(1, (long)Math.ceil(count * Math.min(100.0, percentile) / 100.0));
+    long seen=0;
+
+    for (int i=0; i < counts.length; i++) {
+      seen+=counts[i];
+
+      if (seen >= target) {
+        return(Math.min(max, Math.max(min, highestValueIn(i))));
+      }
+    }
+
+    return(max);
+  }
+
+  synchronized public void reset() {
+    for (int i=0; i < counts.length; i++) {
+      counts[i]=0;
+    }
+
+    count=0;
+    total=0;
+    min=Long.MAX_VALUE;
+    max=0;
+  }
+
+  // index=shift * 16 + (value >> shift), where shift keeps
+  // (value >> shift) under 32, so values under 32 get a
+  // bucket apiece
+
+  private static int indexOf(long value) {
+    int magnitude=63 - Long.numberOfLeadingZeros(value | 1);
+    int shift=Math.max(0, magnitude - SUB_BUCKET_BITS);
+
+    return(shift * SUB_BUCKET_COUNT + (int)(value >> shift));
+  }
+
+  private static long highestValueIn(int index) {
+    int shift=Math.max(0, index / SUB_BUCKET_COUNT - 1);
+    long lowest=(long)(index - shift * SUB_BUCKET_COUNT) << shift;
+
+    return(lowest + (1L << shift) - 1);
+  }
+}
@@ -0,0 +1,202 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.os.Handler;
+import android.os.Looper;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects files to be indexed by the MediaStore and hands
+ * them to the media scanner in batches, once no new file
+ * has turned up for a quiet period, or once enough files
+ * have piled up, rather than one scan per file. During a
+ * burst of pictures, this keeps the media scanner from
+ * competing with the writes of the pictures themselves.
+ */
+public class MediaScanBatcher {
+  public static final int DEFAULT_MAX_BATCH_SIZE=10;
+  public static final long DEFAULT_QUIET_PERIOD_MS=500;
+
+  /**
+   * Whatever actually scans the files. By default, this is
+   * MediaScannerConnection.scanFile().
+   */
+  public interface Scanner {
+    void scan(String[] paths, String[] mimeTypes);
+  }
+
+  private final Scanner scanner;
+  private final Handler handler;
+  private final LinkedHashMap<String, String> pending=
+      new LinkedHashMap<String, String>();
+  private int maxBatchSize=DEFAULT_MAX_BATCH_SIZE;
+  private long quietPeriod=DEFAULT_QUIET_PERIOD_MS;
+  private long filesAdded=0;
+  private long filesScanned=0;
+  private long batchesScanned=0;
+
+  public MediaScanBatcher(final Context ctxt) {
+    this(new Scanner() {
+      private final Context app=ctxt.getApplicationContext();
+
+      @Override
+      public void scan(String[] paths, String[] mimeTypes) {
+        MediaScannerConnection.scanFile(app, paths, mimeTypes, null);
+      }
+    });
+  }
+
+  public MediaScanBatcher(Scanner scanner) {
+    this(scanner, new Handler(Looper.getMainLooper()));
+  }
+
+  /**
+   * @param handler
+   *          where the quiet period is timed, and so the
+   *          thread the scanner is called on when the quiet
+   *          period ends; the main application thread if you
+   *          use the other constructors
+   */
+  public MediaScanBatcher(Scanner scanner, Handler handler) {
+    this.scanner=scanner;
+    this.handler=handler;
+  }
+
+  /**
+   * Scan as soon as this many files are pending.
+   */
+  public MediaScanBatcher maxBatchSize(int maxBatchSize) {
+    synchronized(pending) {
+      this.maxBatchSize=Math.max(1, maxBatchSize);
+    }
+
+    return(this);
+  }
+
+  /**
+   * Scan once no file has been added for this long.
+   */
+  public MediaScanBatcher quietPeriod(long quietPeriod) {
+    synchronized(pending) {
+      this.quietPeriod=quietPeriod;
+    }
+
+    return(this);
+  }
+
+  /**
+   * Adds a file to the next batch. Adding a file that is
+   * already pending just updates its MIME type. Safe to call
+   * from any thread.
+   */
+  public void add(String path, String mimeType) {
+    boolean flushNow;
+
+    synchronized(pending) {
+      pending.put(path, mimeType);
+      filesAdded++;
+      flushNow=(pending.size() >= maxBatchSize);
+
+      handler.removeCallbacks(flushTask);
+
+      if (!flushNow) {
+        handler.postDelayed(flushTask, quietPeriod);
+      }
+    }
+
+    if (flushNow) {
+      flush();
+    }
+  }
+
+  /**
+   * Scans whatever is pending right away, e.g., when the
+   * camera UI is paused.
+   */
+  public void flush() {
+    String[] paths;
+    String[] mimeTypes;
+
+    synchronized(pending) {
+      handler.removeCallbacks(flushTask);
+
+      if (pending.isEmpty()) {
+        return;
+      }
+
+      paths=new String[pending.size()];
+      mimeTypes=new String[paths.length];
+
+      int i=0;
+
+      for (Map.Entry<String, String> entry : pending.entrySet()) {
+        paths[i]=entry.getKey();
+        mimeTypes[i]=entry.getValue();
+        i++;
+      }
+
+      pending.clear();
+      filesScanned+=paths.length;
+      batchesScanned++;
+    }
+
+    scanner.scan(paths, mimeTypes);
+  }
+
+  public int getPendingCount() {
+    synchronized(pending) {
+      return(pending.size());
+    }
+  }
+
+  /**
+   * @return the number of files passed to add(), including
+   *         duplicates
+   */
+  public long getFilesAdded() {
+    synchronized(pending) {
+      return(filesAdded);
+    }
+  }
+
+  /**
+   * @return the number of files handed to the scanner
+   */
+  public long getFilesScanned() {
+    synchronized(pending) {
+      return(filesScanned);
+    }
+  }
+
+  /**
+   * @return the number of times the scanner was invoked
+   */
+  public long getBatchesScanned() {
+    synchronized(pending) {
+      return(batchesScanned);
+    }
+  }
+
+  private final Runnable flushTask=new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+}
@@ -0,0 +1,174 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.content.Context;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.OrientationEventListener;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Process-wide source of the physical orientation of the
+ * device. A single OrientationEventListener is shared by
+ * all registered listeners (e.g., every CameraView), and
+ * its readings are quantized to 0, 90, 180, or 270 degrees
+ * with hysteresis, so listeners only hear about actual
+ * transitions, not every sensor event.
+ */
+public class OrientationMonitor {
+  public static final int DEFAULT_HYSTERESIS=10;
+
+  /**
+   * Listener for changes in the quantized orientation.
+   */
+  public interface Listener {
+    /**
+     * Called on the main application thread when the
+     * device has been turned to a new orientation, and once
+     * right after registering, if the orientation is known.
+     *
+     * @param orientation
+     *          0, 90, 180, or 270
+     */
+    void onOrientationChanged(int orientation);
+  }
+
+  private static volatile OrientationMonitor SINGLETON=null;
+  private final OrientationEventListener sensorListener;
+  private final Handler mainHandler=new Handler(Looper.getMainLooper());
+  private final CopyOnWriteArrayList<Listener> listeners=
+      new CopyOnWriteArrayList<Listener>();
+  private volatile int hysteresis=DEFAULT_HYSTERESIS;
+  private volatile int orientation=
+      OrientationEventListener.ORIENTATION_UNKNOWN;
+  private boolean isSensorEnabled=false;
+
+  synchronized public static OrientationMonitor getInstance(Context ctxt) {
+    if (SINGLETON == null) {
+      SINGLETON=new OrientationMonitor(ctxt.getApplicationContext());
+    }
+
+    return(SINGLETON);
+  }
+
+  private OrientationMonitor(Context ctxt) {
+    sensorListener=
+        new OrientationEventListener(ctxt,
+                                     SensorManager.SENSOR_DELAY_NORMAL) {
+          @Override
+          public void onOrientationChanged(int reading) {
+            onReading(reading);
+          }
+        };
+  }
+
+  /**
+   * @return the current quantized orientation (0, 90, 180,
+   *         or 270), or
+   *         OrientationEventListener.ORIENTATION_UNKNOWN if
+   *         nobody is listening or there has been no
+   *         reading yet
+   */
+  public int getOrientation() {
+    return(orientation);
+  }
+
+  /**
+   * @return the number of degrees past a 45 degree boundary
+   *         that the device has to be turned for a new
+   *         orientation to be reported
+   */
+  public int getHysteresis() {
+    return(hysteresis);
+  }
+
+  /**
+   * Sets the number of degrees past a 45 degree boundary
+   * that the device has to be turned for a new orientation
+   * to be reported. Larger values mean fewer spurious
+   * changes when holding the device at an angle, at the
+   * cost of having to turn it further.
+   *
+   * @param hysteresis
+   *          degrees, 0-44
+   */
+  public void setHysteresis(int hysteresis) {
+    if (hysteresis < 0 || hysteresis >= 45) {
+      throw new IllegalArgumentException(
+                                         String.format("Invalid hysteresis: %d",
+                                                       hysteresis));
+    }
+
+    this.hysteresis=hysteresis;
+  }
+
+  public boolean canDetectOrientation() {
+    return(sensorListener.canDetectOrientation());
+  }
+
+  public void addListener(final Listener listener) {
+    if (listeners.addIfAbsent(listener)) {
+      updateSensor();
+
+      final int current=orientation;
+
+      if (current != OrientationEventListener.ORIENTATION_UNKNOWN) {
+        mainHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            if (listeners.contains(listener)) {
+              listener.onOrientationChanged(current);
+            }
+          }
+        });
+      }
+    }
+  }
+
+  public void removeListener(Listener listener) {
+    if (listeners.remove(listener)) {
+      updateSensor();
+    }
+  }
+
+  synchronized private void updateSensor() {
+    if (listeners.isEmpty()) {
+      if (isSensorEnabled) {
+        sensorListener.disable();
+        isSensorEnabled=false;
+        orientation=OrientationEventListener.ORIENTATION_UNKNOWN;
+      }
+    }
+    else if (!isSensorEnabled && sensorListener.canDetectOrientation()) {
+      sensorListener.enable();
+      isSensorEnabled=true;
+    }
+  }
+
+  private void onReading(int reading) {
+    int quantized=
+        CameraUtils.quantizeOrientation(reading, orientation, hysteresis);
+
+    if (quantized != orientation) {
+      orientation=quantized;
+
+      for (Listener listener : listeners) {
+        listener.onOrientationChanged(quantized);
+      }
+    }
+  }
+}
@@ -0,0 +1,359 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Holds captured JPEGs off of the Java heap while they wait
+ * for ImageCleanupTask, so a burst of pictures does not
+ * fill the heap. Pictures go into direct ByteBuffers, or
+ * are spilled to temporary files in the cache directory
+ * once more than spillThreshold() bytes are waiting. Spilled
+ * pictures are read back through memory-mapped buffers.
+ *
+ * When the system reports that memory is running low while
+ * the app is in the foreground, via onTrimMemory() or
+ * onLowMemory(), everything waiting is spilled, as are new
+ * pictures for the next PRESSURE_MS milliseconds.
+ *
+ * Return one of these from getPictureStager() on your
+ * CameraHost to use it, and close() it when that host is
+ * done with it.
+ */
+public class PictureStager implements ComponentCallbacks2 {
+  public static final long DEFAULT_SPILL_THRESHOLD=16 * 1048576;
+  public static final long PRESSURE_MS=10000;
+  private static final String PREFIX="cwac_staged";
+
+  // anything older than this class being loaded was spilled
+  // by an earlier process, not by a live stager; with some
+  // slack, as file times can be rounded down by a second or
+  // two
+
+  private static final long MTIME_SLACK_MS=2000;
+  private static final long PROCESS_START=System.currentTimeMillis();
+
+  private final Context app;
+  private final File spillDir;
+  private final ArrayList<Entry> entries=new ArrayList<Entry>();
+  private long spillThreshold=DEFAULT_SPILL_THRESHOLD;
+  private boolean useDirectBuffers=true;
+  private long pressureUntil=0;
+  private long stagedBytes=0;
+
+  public PictureStager(Context ctxt) {
+    app=ctxt.getApplicationContext();
+    spillDir=app.getCacheDir();
+    app.registerComponentCallbacks(this);
+
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        cleanUp();
+      }
+    }, "CWAC_CAMERA_SPILL").start();
+  }
+
+  /**
+   * Stops listening for memory pressure. Pictures already
+   * staged can still be retrieved, and are cleaned up as
+   * usual.
+   */
+  public void close() {
+    app.unregisterComponentCallbacks(this);
+  }
+
+  /**
+   * Spill pictures to disk once more than this many bytes
+   * are waiting. Use 0 to always spill.
+   */
+  public PictureStager spillThreshold(long spillThreshold) {
+    synchronized(entries) {
+      this.spillThreshold=spillThreshold;
+    }
+
+    return(this);
+  }
+
+  /**
+   * Whether to keep pictures under the spill threshold in
+   * direct ByteBuffers (true, the default) or leave them on
+   * the heap (false).
+   */
+  public PictureStager useDirectBuffers(boolean useDirectBuffers) {
+    synchronized(entries) {
+      this.useDirectBuffers=useDirectBuffers;
+    }
+
+    return(this);
+  }
+
+  /**
+   * @return the number of bytes of pictures waiting, in
+   *         whatever form
+   */
+  public long getStagedBytes() {
+    synchronized(entries) {
+      return(stagedBytes);
+    }
+  }
+
+  // only the RUNNING_* levels are about memory being short
+  // now; the others (UI_HIDDEN, BACKGROUND, and so on) just
+  // say the app is in the background, and nothing says when
+  // the pressure is over, so it wears off on its own
+
+  @Override
+  public void onTrimMemory(int level) {
+    if (level >= TRIM_MEMORY_RUNNING_LOW
+        && level <= TRIM_MEMORY_RUNNING_CRITICAL) {
+      underPressure();
+    }
+  }
+
+  @Override
+  public void onLowMemory() {
+    underPressure();
+  }
+
+  @Override
+  public void onConfigurationChanged(Configuration newConfig) {
+    // no-op
+  }
+
+  Entry stage(byte[] data) {
+    Entry result=new Entry(data.length);
+    boolean spill;
+
+    synchronized(entries) {
+      spill=
+          SystemClock.uptimeMillis() < pressureUntil
+              || stagedBytes + data.length > spillThreshold;
+
+      if (!spill && !useDirectBuffers) {
+        result.heap=data;
+      }
+
+      entries.add(result);
+      stagedBytes+=data.length;
+    }
+
+    synchronized(result) {
+      if (result.heap == null) {
+        if (!spill) {
+          result.direct=ByteBuffer.allocateDirect(data.length);
+          result.direct.put(data);
+        }
+        else if (!result.spill(ByteBuffer.wrap(data))) {
+          result.heap=data;
+        }
+      }
+    }
+
+    return(result);
+  }
+
+  private void underPressure() {
+    synchronized(entries) {
+      pressureUntil=SystemClock.uptimeMillis() + PRESSURE_MS;
+    }
+
+    spillAll();
+  }
+
+  private void spillAll() {
+    final ArrayList<Entry> toSpill;
+
+    synchronized(entries) {
+      toSpill=new ArrayList<Entry>(entries);
+    }
+
+    // off the main application thread, as these may be
+    // several MB apiece
+
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        for (Entry entry : toSpill) {
+          entry.spill();
+        }
+      }
+    }, "CWAC_CAMERA_SPILL").start();
+  }
+
+  // spill files left over from a previous process, leaving
+  // those of other stagers in this one alone
+
+  private void cleanUp() {
+    File[] leftovers=spillDir.listFiles();
+
+    if (leftovers != null) {
+      for (File f : leftovers) {
+        if (f.getName().startsWith(PREFIX)
+            && f.lastModified() < PROCESS_START - MTIME_SLACK_MS) {
+          f.delete();
+        }
+      }
+    }
+  }
+
+  private void release(Entry entry) {
+    synchronized(entries) {
+      if (entries.remove(entry)) {
+        stagedBytes-=entry.length;
+      }
+    }
+  }
+
+  class Entry {
+    final int length;
+    byte[] heap=null;
+    ByteBuffer direct=null;
+    File file=null;
+    boolean retrieved=false;
+
+    Entry(int length) {
+      this.length=length;
+    }
+
+    /**
+     * @return the picture, which is no longer held by the
+     *         stager
+     */
+    synchronized byte[] retrieve() throws IOException {
+      byte[] result=heap;
+
+      try {
+        if (result == null && direct != null) {
+          result=new byte[length];
+          direct.rewind();
+          direct.get(result);
+        }
+        else if (result == null && file != null) {
+          result=new byte[length];
+          readMapped(result);
+        }
+      }
+      finally {
+        discard();
+      }
+
+      return(result);
+    }
+
+    synchronized void discard() {
+      retrieved=true;
+      heap=null;
+      direct=null;
+
+      if (file != null) {
+        file.delete();
+        file=null;
+      }
+
+      release(this);
+    }
+
+    synchronized void spill() {
+      if (retrieved || file != null) {
+        return;
+      }
+
+      // written straight from the direct buffer, so spilling
+      // does not need any heap
+
+      ByteBuffer buffer=direct;
+
+      if (buffer == null && heap != null) {
+        buffer=ByteBuffer.wrap(heap);
+      }
+
+      if (buffer != null) {
+        buffer.rewind();
+
+        if (spill(buffer)) {
+          heap=null;
+          direct=null;
+        }
+      }
+    }
+
+    synchronized boolean spill(ByteBuffer buffer) {
+      FileOutputStream fos=null;
+
+      try {
+        file=File.createTempFile(PREFIX, ".jpg", spillDir);
+        fos=new FileOutputStream(file);
+
+        FileChannel channel=fos.getChannel();
+
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+
+        fos.close();
+
+        return(true);
+      }
+      catch (IOException e) {
+        Log.e("CWAC-Camera", "Could not spill picture to disk", e);
+
+        if (fos != null) {
+          try {
+            fos.close();
+          }
+          catch (IOException e2) {
+            // already failing
+          }
+        }
+
+        if (file != null) {
+          file.delete();
+          file=null;
+        }
+
+        return(false);
+      }
+    }
+
+    private void readMapped(byte[] result) throws IOException {
+      RandomAccessFile raf=new RandomAccessFile(file, "r");
+
+      try {
+        MappedByteBuffer mapped=
+            raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                                 length);
+
+        mapped.get(result);
+      }
+      finally {
+        raf.close();
+      }
+    }
+  }
+}
@@ -14,9 +14,20 @@
 
 package com.commonsware.cwac.camera;
 
+import android.graphics.Bitmap;
 import android.hardware.Camera;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 public class PictureTransaction implements Camera.ShutterCallback {
+  public static final long DEFAULT_FOCUS_TIMEOUT_MS=3000;
+  static final int MARK_REQUESTED=0;
+  static final int MARK_DEQUEUED=1;
+  static final int MARK_TAKE_PICTURE=2;
+  static final int MARK_SHUTTER=3;
+  static final int MARK_PICTURE_TAKEN=4;
+  static final int MARK_CLEANUP_START=5;
+  static final int MARK_CLEANUP_END=6;
   CameraHost host=null;
   boolean needBitmap=false;
   boolean needByteArray=true;
@@ -25,7 +36,25 @@ public class PictureTransaction implements Camera.ShutterCallback {
   boolean useSingleShotMode=false;
   int displayOrientation=0;
   String flashMode=null;
+  int targetWidth=0;
+  int targetHeight=0;
+  int quality=100;
+  Bitmap.CompressFormat format=Bitmap.CompressFormat.JPEG;
+  Bitmap.CompressFormat savedFormat=Bitmap.CompressFormat.JPEG;
+  int targetSize=0;
+  long encodeTime=-1;
+  int encodedSize=-1;
+  ArrayList<Rendition> renditions=new ArrayList<Rendition>();
+  final long[] marks=new long[MARK_CLEANUP_END + 1];
+  long decodeNanos=0;
+  long rotateNanos=0;
+  long encodeNanos=0;
+  long saveNanos=0;
+  CaptureMetrics metrics=null;
   CameraView cameraView=null;
+  long focusTimeout=-1;
+  long maxFocusAge=-1;
+  Runnable focusTimeoutTask=null;
 
   public PictureTransaction(CameraHost host) {
     this.host=host;
@@ -79,6 +108,157 @@ public class PictureTransaction implements Camera.ShutterCallback {
     return(this);
   }
 
+  /**
+   * Caps the picture size chosen for this transaction by
+   * CameraUtils.getMemoryAwarePictureSize(), which is what
+   * SimpleCameraHost uses if its Builder was given
+   * useMemoryAwarePictureSize(true). Either orientation of
+   * the picture may fit the target. Use 0 for no cap.
+   */
+  public PictureTransaction targetResolution(int width, int height) {
+    this.targetWidth=width;
+    this.targetHeight=height;
+
+    return(this);
+  }
+
+  /**
+   * Quality to use if the picture has to be re-encoded
+   * (e.g., after rotating it), 0-100. Defaults to 100.
+   */
+  public PictureTransaction quality(int quality) {
+    if (quality < 0 || quality > 100) {
+      throw new IllegalArgumentException(
+                                         String.format("Invalid quality: %d",
+                                                       quality));
+    }
+
+    this.quality=quality;
+
+    return(this);
+  }
+
+  /**
+   * Format to use if the picture has to be re-encoded.
+   * Defaults to JPEG. Pictures that are not re-encoded are
+   * left as the JPEG from the camera.
+   */
+  public PictureTransaction format(Bitmap.CompressFormat format) {
+    this.format=format;
+
+    return(this);
+  }
+
+  /**
+   * Aim for a re-encoded picture of at most about this many
+   * bytes, by lowering the quality from what quality() asks
+   * for. The quality is picked using a downsampled copy of
+   * the picture, so the result is approximate. Use 0 to turn
+   * this off.
+   */
+  public PictureTransaction targetSize(int targetSize) {
+    this.targetSize=targetSize;
+
+    return(this);
+  }
+
+  /**
+   * Also produce this scaled-down copy of the picture,
+   * handed to saveRendition() on the CameraHost. Call this
+   * once per rendition that you want. All renditions come
+   * from a single decode of the picture.
+   */
+  public PictureTransaction rendition(Rendition rendition) {
+    renditions.add(rendition);
+
+    return(this);
+  }
+
+  /**
+   * If the camera is auto-focusing when the picture is
+   * requested, the picture is taken once focusing is done,
+   * or after this many milliseconds, whichever comes first.
+   * Defaults to DEFAULT_FOCUS_TIMEOUT_MS, or less, if the
+   * device has been calibrated and focuses faster than
+   * that.
+   */
+  public PictureTransaction focusTimeout(long focusTimeout) {
+    this.focusTimeout=focusTimeout;
+
+    return(this);
+  }
+
+  /**
+   * Auto-focus before taking the picture, unless the camera
+   * focused successfully less than this many milliseconds
+   * ago and the scene does not seem to have changed since
+   * (e.g., the device was not turned). Use -1 (the default)
+   * to take the picture without focusing first.
+   */
+  public PictureTransaction focusFirst(long maxFocusAge) {
+    this.maxFocusAge=maxFocusAge;
+
+    return(this);
+  }
+
+  /**
+   * @return milliseconds spent re-encoding the picture, 0 if
+   *         it was not re-encoded, or -1 if it has not been
+   *         processed yet
+   */
+  public long getEncodeTime() {
+    return(encodeTime);
+  }
+
+  /**
+   * @return size of the picture as handed to saveImage() or
+   *         written to openImageStream(), in bytes, or -1 if
+   *         it has not been processed yet
+   */
+  public int getEncodedSize() {
+    return(encodedSize);
+  }
+
+  /**
+   * @return the format of the picture as handed to
+   *         saveImage() or written to openImageStream():
+   *         the one from format() if the picture was
+   *         re-encoded, JPEG otherwise
+   */
+  public Bitmap.CompressFormat getSavedFormat() {
+    return(savedFormat);
+  }
+
+  boolean fitsTargetResolution(int width, int height) {
+    if (targetWidth <= 0 || targetHeight <= 0) {
+      return(true);
+    }
+
+    int longSide=Math.max(width, height);
+    int shortSide=Math.min(width, height);
+
+    return(longSide <= Math.max(targetWidth, targetHeight)
+        && shortSide <= Math.min(targetWidth, targetHeight));
+  }
+
+  // a new request starts the timings over, so a transaction
+  // that is reused does not add to those of its last picture
+
+  void mark(int point) {
+    if (point == MARK_REQUESTED) {
+      Arrays.fill(marks, 0);
+      decodeNanos=0;
+      rotateNanos=0;
+      encodeNanos=0;
+      saveNanos=0;
+      encodeTime=-1;
+      encodedSize=-1;
+      savedFormat=Bitmap.CompressFormat.JPEG;
+    }
+
+    marks[point]=System.nanoTime();
+  }
+
   PictureTransaction displayOrientation(int displayOrientation) {
     this.displayOrientation=displayOrientation;
 
@@ -87,6 +267,8 @@ public class PictureTransaction implements Camera.ShutterCallback {
 
   @Override
   public void onShutter() {
+    mark(MARK_SHUTTER);
+
     Camera.ShutterCallback cb=host.getShutterCallback();
 
     if (cb != null) {
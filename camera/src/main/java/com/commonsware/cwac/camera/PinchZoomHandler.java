@@ -0,0 +1,119 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.hardware.Camera;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+
+/**
+ * Turns pinch gestures on a CameraView into zoom levels for
+ * its ZoomController. The gesture scales the zoom ratio (as
+ * reported by getZoomRatios()), not the zoom level, so the
+ * zoom tracks the fingers however the levels are spaced.
+ * The ZoomController keeps the camera from being flooded
+ * with parameter changes.
+ */
+class PinchZoomHandler extends
+    ScaleGestureDetector.SimpleOnScaleGestureListener {
+  private final CameraView cameraView;
+  private final ScaleGestureDetector detector;
+  private CameraCapabilities ratiosFor=null;
+  private int[] ratios=null;
+  private float ratio;
+  private int level;
+
+  PinchZoomHandler(CameraView cameraView) {
+    this.cameraView=cameraView;
+    detector=new ScaleGestureDetector(cameraView.getContext(), this);
+  }
+
+  boolean onTouchEvent(MotionEvent event) {
+    return(detector.onTouchEvent(event));
+  }
+
+  @Override
+  public boolean onScaleBegin(ScaleGestureDetector detector) {
+    CameraCapabilities caps=cameraView.getCameraCapabilities();
+
+    if (caps.getMaxZoom() <= 0 || !cameraView.doesZoomReallyWork()) {
+      return(false);
+    }
+
+    // the ratio table only changes with the camera
+
+    if (caps != ratiosFor) {
+      ratios=caps.getZoomRatios();
+      ratiosFor=caps;
+    }
+
+    if (ratios.length == 0) {
+      return(false);
+    }
+
+    level=cameraView.getZoomController().getTargetZoom();
+
+    if (level < 0 || level >= ratios.length) {
+      Camera.Parameters params=cameraView.getCameraParameters();
+
+      level=(params == null ? 0 : params.getZoom());
+    }
+
+    level=Math.max(0, Math.min(level, ratios.length - 1));
+    ratio=ratios[level];
+
+    return(true);
+  }
+
+  @Override
+  public boolean onScale(ScaleGestureDetector detector) {
+    ratio*=detector.getScaleFactor();
+    ratio=Math.max(ratios[0], Math.min(ratio, ratios[ratios.length - 1]));
+
+    int next=levelForRatio(ratio);
+
+    if (next != level) {
+      level=next;
+      cameraView.getZoomController().setZoom(level);
+    }
+
+    return(true);
+  }
+
+  // ratios are in ascending order, so find the nearest by
+  // binary search
+
+  private int levelForRatio(float target) {
+    int low=0;
+    int high=ratios.length - 1;
+
+    while (low < high) {
+      int mid=(low + high) >>> 1;
+
+      if (ratios[mid] < target) {
+        low=mid + 1;
+      }
+      else {
+        high=mid;
+      }
+    }
+
+    if (low > 0 && target - ratios[low - 1] < ratios[low] - target) {
+      return(low - 1);
+    }
+
+    return(low);
+  }
+}
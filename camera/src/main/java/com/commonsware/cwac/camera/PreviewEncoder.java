@@ -0,0 +1,536 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records video by encoding preview frames with MediaCodec
+ * and muxing them into an MP4 file with MediaMuxer, as an
+ * alternative to MediaRecorder. Unlike record() on
+ * CameraView, this works in any orientation, does not stop
+ * the preview, and leaves your preview callback (e.g., for
+ * frame analysis) running while recording.
+ *
+ * Frames are copied into a small pool of buffers and
+ * encoded on a thread of their own. If the encoder falls
+ * behind, and the pool is empty, new frames are dropped
+ * rather than stalling the preview.
+ *
+ * Pass one of these to startPreviewRecording() on
+ * CameraView. Each instance records one file, or one
+ * series of files when given RollingSegments. Video only;
+ * there is no audio track. Requires API Level 18+.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class PreviewEncoder {
+  public static final int DEFAULT_BIT_RATE=6000000;
+  public static final int DEFAULT_FRAME_RATE=30;
+  public static final int DEFAULT_I_FRAME_INTERVAL=1;
+  public static final int DEFAULT_MAX_QUEUED_FRAMES=3;
+  private static final String MIME_TYPE="video/avc";
+  private static final long TIMEOUT_US=10000;
+  private static final long END_OF_STREAM_TIMEOUT_MS=5000;
+
+  /**
+   * Listener for the outcome of the recording. Methods are
+   * called on the encoder's own thread.
+   */
+  public interface Listener {
+    void onEncodingComplete(PreviewEncoder encoder, File output);
+
+    void onEncodingFailed(PreviewEncoder encoder, Exception e);
+  }
+
+  private final RollingSegments segments;
+  private volatile File output;
+  private int bitRate=DEFAULT_BIT_RATE;
+  private int frameRate=DEFAULT_FRAME_RATE;
+  private int iFrameInterval=DEFAULT_I_FRAME_INTERVAL;
+  private int maxQueuedFrames=DEFAULT_MAX_QUEUED_FRAMES;
+  private Listener listener=null;
+  private final AtomicLong framesEncoded=new AtomicLong();
+  private final AtomicLong framesDropped=new AtomicLong();
+  private ArrayBlockingQueue<Frame> pending=null;
+  private ArrayBlockingQueue<Frame> free=null;
+  private volatile boolean isStopping=false;
+  private Thread worker=null;
+  private MediaCodec codec=null;
+  private MediaMuxer muxer=null;
+  private ByteBuffer[] inputBuffers=null;
+  private ByteBuffer[] outputBuffers=null;
+  private int track=-1;
+  private MediaFormat trackFormat=null;
+  private int orientation;
+  private long segmentStartUs=-1;
+  private long segmentBytes=0;
+  private int colorFormat;
+  private int width;
+  private int height;
+  private byte[] chroma=null;
+  private long firstTimestamp=-1;
+
+  public PreviewEncoder(File output) {
+    this.output=output;
+    this.segments=null;
+  }
+
+  /**
+   * Records into a series of files, as set up by the
+   * RollingSegments, rather than into a single file.
+   */
+  public PreviewEncoder(RollingSegments segments) {
+    this.output=segments.nextFile();
+    this.segments=segments;
+  }
+
+  public PreviewEncoder bitRate(int bitRate) {
+    this.bitRate=bitRate;
+
+    return(this);
+  }
+
+  public PreviewEncoder frameRate(int frameRate) {
+    this.frameRate=frameRate;
+
+    return(this);
+  }
+
+  /**
+   * Seconds between key frames.
+   */
+  public PreviewEncoder iFrameInterval(int iFrameInterval) {
+    this.iFrameInterval=iFrameInterval;
+
+    return(this);
+  }
+
+  /**
+   * The number of frames that can be waiting for the encoder
+   * before new ones are dropped.
+   */
+  public PreviewEncoder maxQueuedFrames(int maxQueuedFrames) {
+    this.maxQueuedFrames=Math.max(1, maxQueuedFrames);
+
+    return(this);
+  }
+
+  public PreviewEncoder listener(Listener listener) {
+    this.listener=listener;
+
+    return(this);
+  }
+
+  /**
+   * @return the file being recorded, which for segmented
+   *         recordings is the current segment
+   */
+  public File getOutput() {
+    return(output);
+  }
+
+  public long getFramesEncoded() {
+    return(framesEncoded.get());
+  }
+
+  public long getFramesDropped() {
+    return(framesDropped.get());
+  }
+
+  /**
+   * Sets up the encoder and muxer for NV21 preview frames of
+   * this size.
+   *
+   * @param orientation
+   *          degrees to rotate the video on playback, e.g.,
+   *          the output orientation of the camera
+   */
+  void start(int width, int height, int orientation) throws IOException {
+    this.width=width;
+    this.height=height;
+    this.orientation=orientation;
+
+    try {
+      codec=MediaCodec.createEncoderByType(MIME_TYPE);
+      colorFormat=chooseColorFormat(codec.getCodecInfo());
+
+      MediaFormat format=
+          MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+
+      format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+      format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+      format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+      format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iFrameInterval);
+      codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+      muxer=
+          new MediaMuxer(output.getAbsolutePath(),
+                         MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+      muxer.setOrientationHint(orientation);
+      codec.start();
+      inputBuffers=codec.getInputBuffers();
+      outputBuffers=codec.getOutputBuffers();
+    }
+    catch (IOException e) {
+      releaseCodec();
+      throw e;
+    }
+    catch (RuntimeException e) {
+      releaseCodec();
+      throw e;
+    }
+
+    int frameSize=width * height * 3 / 2;
+
+    pending=new ArrayBlockingQueue<Frame>(maxQueuedFrames);
+    free=new ArrayBlockingQueue<Frame>(maxQueuedFrames);
+
+    for (int i=0; i < maxQueuedFrames; i++) {
+      free.add(new Frame(frameSize));
+    }
+
+    if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar) {
+      chroma=new byte[frameSize - width * height];
+    }
+
+    worker=new Thread(new Runnable() {
+      @Override
+      public void run() {
+        encode();
+      }
+    }, "CWAC_CAMERA_ENCODER");
+    worker.start();
+  }
+
+  /**
+   * Queues a copy of a preview frame for encoding, unless
+   * the encoder is too far behind.
+   *
+   * @return true if the frame was queued, false if it was
+   *         dropped
+   */
+  boolean offer(byte[] nv21, long timestampNanos) {
+    Frame frame=(isStopping ? null : free.poll());
+
+    if (frame == null || nv21.length < frame.data.length) {
+      if (frame != null) {
+        free.offer(frame);
+      }
+
+      framesDropped.incrementAndGet();
+
+      return(false);
+    }
+
+    System.arraycopy(nv21, 0, frame.data, 0, frame.data.length);
+    frame.timestampNanos=timestampNanos;
+    pending.offer(frame);
+
+    return(true);
+  }
+
+  /**
+   * Finishes the recording in the background; the listener
+   * is told when the file is complete.
+   */
+  void stop() {
+    isStopping=true;
+  }
+
+  private void encode() {
+    MediaCodec.BufferInfo info=new MediaCodec.BufferInfo();
+    Exception failure=null;
+
+    try {
+      while (!isStopping || !pending.isEmpty()) {
+        Frame frame=pending.poll(TIMEOUT_US, TimeUnit.MICROSECONDS);
+
+        if (frame != null) {
+          queueFrame(frame);
+          free.offer(frame);
+        }
+
+        drain(info, 0);
+      }
+
+      // the encoder may need its output drained before it
+      // frees an input buffer, and a broken one may never
+      // finish, so neither wait is open-ended
+
+      long deadline=SystemClock.uptimeMillis() + END_OF_STREAM_TIMEOUT_MS;
+      int index=codec.dequeueInputBuffer(TIMEOUT_US);
+
+      while (index < 0) {
+        checkDeadline(deadline);
+        drain(info, 0);
+        index=codec.dequeueInputBuffer(TIMEOUT_US);
+      }
+
+      codec.queueInputBuffer(index, 0, 0, presentationTimeUs(System.nanoTime()),
+                             MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+      drain(info, deadline);
+    }
+    catch (Exception e) {
+      failure=e;
+    }
+
+    try {
+      releaseCodec();
+    }
+    catch (RuntimeException e) {
+      if (failure == null) {
+        failure=e;
+      }
+    }
+
+    if (listener != null) {
+      try {
+        if (failure == null) {
+          listener.onEncodingComplete(this, output);
+        }
+        else {
+          listener.onEncodingFailed(this, failure);
+        }
+      }
+      catch (Throwable t) {
+        Log.e("CWAC-Camera", "Exception in PreviewEncoder listener", t);
+      }
+    }
+    else if (failure != null) {
+      Log.e("CWAC-Camera", "Exception encoding preview frames", failure);
+    }
+  }
+
+  private void queueFrame(Frame frame) {
+    int index=codec.dequeueInputBuffer(TIMEOUT_US);
+
+    if (index < 0) {
+      framesDropped.incrementAndGet();
+
+      return;
+    }
+
+    ByteBuffer input=inputBuffers[index];
+    int lumaSize=width * height;
+
+    input.clear();
+    input.put(frame.data, 0, lumaSize);
+
+    // NV21 has interleaved V/U; the encoder wants U/V, either
+    // interleaved (semi-planar) or in planes of their own
+
+    if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar) {
+      int quarter=lumaSize / 4;
+
+      for (int i=0; i < quarter; i++) {
+        chroma[i]=frame.data[lumaSize + i * 2 + 1];
+        chroma[quarter + i]=frame.data[lumaSize + i * 2];
+      }
+
+      input.put(chroma, 0, quarter * 2);
+    }
+    else {
+      byte[] data=frame.data;
+
+      for (int i=lumaSize; i + 1 < data.length; i+=2) {
+        byte v=data[i];
+
+        data[i]=data[i + 1];
+        data[i + 1]=v;
+      }
+
+      input.put(data, lumaSize, data.length - lumaSize);
+    }
+
+    codec.queueInputBuffer(index, 0, input.position(),
+                           presentationTimeUs(frame.timestampNanos), 0);
+    framesEncoded.incrementAndGet();
+  }
+
+  /**
+   * Hands encoded output to the muxer. With a deadline of 0,
+   * returns once no output is ready; otherwise, keeps going
+   * until the end of the stream, or fails once uptime passes
+   * the deadline.
+   */
+  private void drain(MediaCodec.BufferInfo info, long deadline)
+    throws IOException {
+    while (true) {
+      if (deadline > 0) {
+        checkDeadline(deadline);
+      }
+
+      int index=codec.dequeueOutputBuffer(info, TIMEOUT_US);
+
+      if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+        if (deadline == 0) {
+          return;
+        }
+      }
+      else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+        outputBuffers=codec.getOutputBuffers();
+      }
+      else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+        trackFormat=codec.getOutputFormat();
+        track=muxer.addTrack(trackFormat);
+        muxer.start();
+      }
+      else if (index >= 0) {
+        ByteBuffer encoded=outputBuffers[index];
+
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+          info.size=0; // already handed to the muxer via the format
+        }
+
+        if (info.size > 0 && track >= 0) {
+          if (segments != null) {
+            rebase(info);
+          }
+
+          encoded.position(info.offset);
+          encoded.limit(info.offset + info.size);
+          muxer.writeSampleData(track, encoded, info);
+        }
+
+        codec.releaseOutputBuffer(index, false);
+
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+          return;
+        }
+      }
+    }
+  }
+
+  // starts a new segment, if one is due and this is a key
+  // frame, and makes the timestamps relative to the start of
+  // the segment
+
+  private void rebase(MediaCodec.BufferInfo info) {
+    if (segmentStartUs >= 0
+        && (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0
+        && segments.isDue(info.presentationTimeUs - segmentStartUs,
+                          segmentBytes)) {
+      File next=segments.nextFile();
+
+      try {
+        MediaMuxer nextMuxer=
+            new MediaMuxer(next.getAbsolutePath(),
+                           MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+
+        nextMuxer.setOrientationHint(orientation);
+        track=nextMuxer.addTrack(trackFormat);
+        nextMuxer.start();
+        segments.finish(muxer, output);
+        muxer=nextMuxer;
+        output=next;
+        segmentStartUs=-1;
+        segmentBytes=0;
+      }
+      catch (IOException e) {
+        Log.e("CWAC-Camera", "Could not start new segment", e);
+      }
+    }
+
+    if (segmentStartUs < 0) {
+      segmentStartUs=info.presentationTimeUs;
+    }
+
+    info.presentationTimeUs-=segmentStartUs;
+    segmentBytes+=info.size;
+  }
+
+  private static void checkDeadline(long deadline) throws IOException {
+    if (SystemClock.uptimeMillis() > deadline) {
+      throw new IOException("Timed out waiting for the encoder to finish");
+    }
+  }
+
+  private long presentationTimeUs(long timestampNanos) {
+    if (firstTimestamp < 0) {
+      firstTimestamp=timestampNanos;
+    }
+
+    return((timestampNanos - firstTimestamp) / 1000);
+  }
+
+  private void releaseCodec() {
+    if (codec != null) {
+      try {
+        codec.stop();
+      }
+      finally {
+        codec.release();
+        codec=null;
+      }
+    }
+
+    if (muxer != null && segments != null && track >= 0) {
+      segments.finishAndWait(muxer, output);
+      muxer=null;
+    }
+    else if (muxer != null) {
+      try {
+        if (track >= 0) {
+          muxer.stop();
+        }
+      }
+      finally {
+        muxer.release();
+        muxer=null;
+      }
+    }
+  }
+
+  private static int chooseColorFormat(MediaCodecInfo info) {
+    int[] formats=
+        info.getCapabilitiesForType(MIME_TYPE).colorFormats;
+
+    for (int format : formats) {
+      if (format == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar) {
+        return(format);
+      }
+    }
+
+    for (int format : formats) {
+      if (format == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar) {
+        return(format);
+      }
+    }
+
+    throw new IllegalStateException(
+                                    "Encoder supports neither semi-planar nor planar YUV420");
+  }
+
+  private static class Frame {
+    final byte[] data;
+    long timestampNanos;
+
+    Frame(int size) {
+      data=new byte[size];
+    }
+  }
+}
@@ -0,0 +1,337 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.hardware.Camera;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks preview sizes out of a camera's list of supported
+ * preview sizes. The list is sorted once, largest area
+ * first, into primitive arrays, and recent answers are
+ * remembered, so repeated queries from layout passes do not
+ * redo the search.
+ *
+ * By default, the choice is the same as
+ * CameraUtils.getBestAspectPreviewSize(): the largest size
+ * with the closest aspect ratio. Sizes can also be capped
+ * by area, by a power budget (pixels per second at a given
+ * frame rate), or chosen as the smallest size that covers
+ * an analysis resolution.
+ */
+public class PreviewSizeSelector {
+  private static final int CACHE_SIZE=8;
+  private static final int SELECTOR_CACHE_SIZE=4;
+  private static final String KEY_PREVIEW_SIZE_VALUES=
+      "preview-size-values";
+  private static final Map<String, PreviewSizeSelector> SELECTORS=
+      new LruMap<String, PreviewSizeSelector>(SELECTOR_CACHE_SIZE);
+
+  private final List<Camera.Size> sizes;
+  private final int[] widths;
+  private final int[] heights;
+  private final int[] areas;
+  private final double[] aspects;
+  private final int[] order;
+  private final Map<Long, Integer> cache=
+      new LruMap<Long, Integer>(CACHE_SIZE);
+  private int maxArea=Integer.MAX_VALUE;
+  private int analysisWidth=0;
+  private int analysisHeight=0;
+  private long maxPixelsPerSecond=Long.MAX_VALUE;
+  private int frameRate=0;
+  private int searches=0;
+
+  /**
+   * @return a shared selector, with the default policy, for
+   *         the preview sizes supported by these parameters;
+   *         create your own instance if you want to use
+   *         another policy. The shared selectors only hold
+   *         widths and heights, not the Camera.Size objects
+   *         (which hold on to their Camera), so use
+   *         selectIndex() with these, and get the size out of
+   *         getSupportedPreviewSizes().
+   */
+  public static PreviewSizeSelector forParameters(Camera.Parameters parameters) {
+    String key=parameters.get(KEY_PREVIEW_SIZE_VALUES);
+
+    if (key == null) {
+      return(new PreviewSizeSelector(parameters.getSupportedPreviewSizes()));
+    }
+
+    synchronized(SELECTORS) {
+      PreviewSizeSelector result=SELECTORS.get(key);
+
+      if (result == null) {
+        result=
+            new PreviewSizeSelector(
+                                    pack(parameters.getSupportedPreviewSizes()));
+        SELECTORS.put(key, result);
+      }
+
+      return(result);
+    }
+  }
+
+  public PreviewSizeSelector(List<Camera.Size> sizes) {
+    this.sizes=sizes;
+    widths=new int[sizes.size()];
+    heights=new int[sizes.size()];
+
+    for (int i=0; i < widths.length; i++) {
+      widths[i]=sizes.get(i).width;
+      heights[i]=sizes.get(i).height;
+    }
+
+    areas=new int[widths.length];
+    aspects=new double[widths.length];
+    order=new int[widths.length];
+    sort();
+  }
+
+  /**
+   * Creates a selector for the packed width/height pairs
+   * from CameraCapabilities.getPreviewSizes(), e.g., to
+   * pick a preview size before the camera is opened. Use
+   * selectIndex() with a selector created this way.
+   */
+  public PreviewSizeSelector(int[] packedSizes) {
+    sizes=null;
+    widths=new int[packedSizes.length / 2];
+    heights=new int[widths.length];
+
+    for (int i=0; i < widths.length; i++) {
+      widths[i]=packedSizes[i * 2];
+      heights[i]=packedSizes[i * 2 + 1];
+    }
+
+    areas=new int[widths.length];
+    aspects=new double[widths.length];
+    order=new int[widths.length];
+    sort();
+  }
+
+  /**
+   * Ignore sizes with more than this many pixels.
+   */
+  public PreviewSizeSelector maxArea(int maxArea) {
+    this.maxArea=maxArea;
+    clearCache();
+
+    return(this);
+  }
+
+  /**
+   * Prefer the smallest size that is at least this big,
+   * e.g., for frame analysis that needs a certain
+   * resolution, but no more.
+   */
+  public PreviewSizeSelector analysisSize(int width, int height) {
+    this.analysisWidth=width;
+    this.analysisHeight=height;
+    clearCache();
+
+    return(this);
+  }
+
+  /**
+   * Ignore sizes that would deliver more than this many
+   * pixels per second at the given frame rate.
+   */
+  public PreviewSizeSelector powerBudget(long maxPixelsPerSecond,
+                                         int frameRate) {
+    this.maxPixelsPerSecond=maxPixelsPerSecond;
+    this.frameRate=frameRate;
+    clearCache();
+
+    return(this);
+  }
+
+  public Camera.Size select(int displayOrientation, int width,
+                            int height, double closeEnough) {
+    if (sizes == null) {
+      throw new IllegalStateException(
+                                      "Use selectIndex() with packed sizes");
+    }
+
+    int index=selectIndex(displayOrientation, width, height, closeEnough);
+
+    return(index < 0 ? null : sizes.get(index));
+  }
+
+  /**
+   * @return the index of the chosen size, in the list or
+   *         packed array that this selector was created
+   *         with, or -1 if there are no sizes
+   */
+  public int selectIndex(int displayOrientation, int width, int height,
+                         double closeEnough) {
+    long key=
+        ((long)(displayOrientation / 90) << 62)
+            | ((long)(width & 0xFFFFF) << 42)
+            | ((long)(height & 0xFFFFF) << 22)
+            | ((long)(closeEnough * 1000) & 0x3FFFFF);
+
+    synchronized(cache) {
+      Integer cached=cache.get(key);
+
+      if (cached != null) {
+        return(cached);
+      }
+    }
+
+    double targetRatio=(double)width / height;
+
+    if (displayOrientation == 90 || displayOrientation == 270) {
+      targetRatio=(double)height / width;
+    }
+
+    int result=find(targetRatio, closeEnough, true);
+
+    if (result < 0) {
+      result=find(targetRatio, closeEnough, false);
+    }
+
+    synchronized(cache) {
+      cache.put(key, result);
+      searches++;
+    }
+
+    return(result);
+  }
+
+  public int getWidth(int index) {
+    return(widths[index]);
+  }
+
+  public int getHeight(int index) {
+    return(heights[index]);
+  }
+
+  // how many queries had to search the sizes, rather than
+  // being answered from the cache
+
+  int getSearchCount() {
+    synchronized(cache) {
+      return(searches);
+    }
+  }
+
+  private int find(double targetRatio, double closeEnough,
+                   boolean applyPolicy) {
+    boolean smallestFirst=
+        applyPolicy && (analysisWidth > 0 || analysisHeight > 0);
+    int cap=maxArea;
+    int result=-1;
+    double minDiff=Double.MAX_VALUE;
+
+    if (frameRate > 0) {
+      cap=(int)Math.min(cap, maxPixelsPerSecond / frameRate);
+    }
+
+    for (int i=0; i < order.length; i++) {
+      int index=order[smallestFirst ? order.length - 1 - i : i];
+
+      if (applyPolicy) {
+        if (areas[index] > cap) {
+          continue;
+        }
+
+        if (smallestFirst && !coversAnalysisSize(index)) {
+          continue;
+        }
+      }
+
+      double diff=Math.abs(aspects[index] - targetRatio);
+
+      if (diff < minDiff) {
+        result=index;
+        minDiff=diff;
+      }
+
+      if (minDiff < closeEnough) {
+        break;
+      }
+    }
+
+    return(result);
+  }
+
+  // either way around, as the preview may be rotated
+
+  private boolean coversAnalysisSize(int index) {
+    int longSide=Math.max(widths[index], heights[index]);
+    int shortSide=Math.min(widths[index], heights[index]);
+
+    return(longSide >= Math.max(analysisWidth, analysisHeight)
+        && shortSide >= Math.min(analysisWidth, analysisHeight));
+  }
+
+  private void sort() {
+    for (int i=0; i < widths.length; i++) {
+      areas[i]=widths[i] * heights[i];
+      aspects[i]=(double)widths[i] / heights[i];
+      order[i]=i;
+    }
+
+    // insertion sort, largest area first, stable; the lists
+    // are a few dozen entries at most
+
+    for (int i=1; i < order.length; i++) {
+      int current=order[i];
+      int j=i - 1;
+
+      while (j >= 0 && areas[order[j]] < areas[current]) {
+        order[j + 1]=order[j];
+        j--;
+      }
+
+      order[j + 1]=current;
+    }
+  }
+
+  private static int[] pack(List<Camera.Size> sizes) {
+    int[] result=new int[sizes.size() * 2];
+
+    for (int i=0; i < sizes.size(); i++) {
+      result[i * 2]=sizes.get(i).width;
+      result[i * 2 + 1]=sizes.get(i).height;
+    }
+
+    return(result);
+  }
+
+  private void clearCache() {
+    synchronized(cache) {
+      cache.clear();
+    }
+  }
+
+  private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+    private final int maxEntries;
+
+    LruMap(int maxEntries) {
+      super(maxEntries + 1, 1.0f, true);
+      this.maxEntries=maxEntries;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+      return(size() > maxEntries);
+    }
+  }
+}
@@ -24,5 +24,22 @@ public interface PreviewStrategy {
 
   void attach(MediaRecorder recorder);
 
+  /**
+   * Rotates the preview content around the center of the
+   * widget, on top of the camera's own display orientation,
+   * so that the preview does not have to be restarted.
+   * 
+   * @param degrees
+   *          0, 90, 180, or 270
+   * @param onApplied
+   *          run on the main application thread once the
+   *          rotation is showing, if this returns true; may
+   *          be null
+   * @return true if the widget will apply the rotation,
+   *         false if the camera's display orientation has
+   *         to be changed instead
+   */
+  boolean setPreviewRotation(int degrees, Runnable onApplied);
+
   View getWidget();
 }
\ No newline at end of file
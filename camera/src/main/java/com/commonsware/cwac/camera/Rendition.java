@@ -0,0 +1,70 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.graphics.Bitmap;
+
+/**
+ * A scaled-down copy of a picture to be produced alongside
+ * the picture itself, e.g., for uploading or for a
+ * thumbnail grid. Request these via rendition() on
+ * PictureTransaction; they are handed to saveRendition()
+ * on your CameraHost.
+ */
+public class Rendition {
+  private final int maxDimension;
+  private final Bitmap.CompressFormat format;
+  private final int quality;
+
+  /**
+   * @param maxDimension
+   *          the longest side of the rendition, in pixels
+   *          (smaller pictures are not scaled up)
+   * @param format
+   *          the format to encode the rendition in
+   * @param quality
+   *          the quality to encode the rendition at, 0-100
+   */
+  public Rendition(int maxDimension, Bitmap.CompressFormat format,
+                   int quality) {
+    if (maxDimension <= 0) {
+      throw new IllegalArgumentException(
+                                         String.format("Invalid maxDimension: %d",
+                                                       maxDimension));
+    }
+
+    if (quality < 0 || quality > 100) {
+      throw new IllegalArgumentException(
+                                         String.format("Invalid quality: %d",
+                                                       quality));
+    }
+
+    this.maxDimension=maxDimension;
+    this.format=format;
+    this.quality=quality;
+  }
+
+  public int getMaxDimension() {
+    return(maxDimension);
+  }
+
+  public Bitmap.CompressFormat getFormat() {
+    return(format);
+  }
+
+  public int getQuality() {
+    return(quality);
+  }
+}
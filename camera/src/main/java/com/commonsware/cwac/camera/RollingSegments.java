@@ -0,0 +1,213 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.annotation.TargetApi;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.util.Log;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits a PreviewEncoder recording into a series of MP4
+ * files, starting a new one at the first key frame after
+ * the current one reaches maxDuration() or maxBytes(). No
+ * frames are lost between segments. Finishing a segment
+ * (writing its index) happens on a background thread, so
+ * neither the camera nor the encoder waits on it.
+ *
+ * With keepLast(), only the newest segments are kept, and
+ * older ones are deleted as new ones are finished.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class RollingSegments {
+  public static final long DEFAULT_MAX_DURATION_MS=60000;
+  private static final long IDLE_TIMEOUT_SECONDS=10;
+
+  /**
+   * Listener for segments being finished and deleted.
+   * Methods are called on a background thread.
+   */
+  public interface Listener {
+    void onSegmentComplete(File segment);
+
+    void onSegmentDeleted(File segment);
+  }
+
+  private final File dir;
+  private final FileNamer namer;
+  private final ArrayDeque<File> completed=new ArrayDeque<File>();
+  private final ThreadPoolExecutor finisher;
+  private long maxDurationUs=DEFAULT_MAX_DURATION_MS * 1000;
+  private long maxBytes=0;
+  private int keepLast=0;
+  private Listener listener=null;
+
+  /**
+   * @param dir
+   *          where the segments go
+   * @param prefix
+   *          start of each segment's file name, which is
+   *          followed by a timestamp
+   */
+  public RollingSegments(File dir, String prefix) {
+    this.dir=dir;
+    this.namer=new FileNamer(prefix, ".mp4");
+
+    finisher=
+        new ThreadPoolExecutor(0, 1, IDLE_TIMEOUT_SECONDS,
+                               TimeUnit.SECONDS,
+                               new LinkedBlockingQueue<Runnable>(),
+                               new ThreadFactory() {
+                                 @Override
+                                 public Thread newThread(Runnable r) {
+                                   return(new Thread(r,
+                                                     "CWAC_CAMERA_FINALIZE"));
+                                 }
+                               });
+  }
+
+  /**
+   * Start a new segment once the current one is this long.
+   * Use 0 for no limit. Segments run up to one key frame
+   * interval past this.
+   */
+  public RollingSegments maxDuration(long maxDurationMs) {
+    this.maxDurationUs=maxDurationMs * 1000;
+
+    return(this);
+  }
+
+  /**
+   * Start a new segment once the current one has this many
+   * bytes of video. Use 0 (the default) for no limit.
+   */
+  public RollingSegments maxBytes(long maxBytes) {
+    this.maxBytes=maxBytes;
+
+    return(this);
+  }
+
+  /**
+   * Keep only this many finished segments, deleting the
+   * oldest. Use 0 (the default) to keep them all.
+   */
+  public RollingSegments keepLast(int keepLast) {
+    synchronized(completed) {
+      this.keepLast=Math.max(0, keepLast);
+    }
+
+    return(this);
+  }
+
+  public RollingSegments listener(Listener listener) {
+    this.listener=listener;
+
+    return(this);
+  }
+
+  /**
+   * @return the finished segments still on disk, oldest
+   *         first
+   */
+  public List<File> getSegments() {
+    synchronized(completed) {
+      return(new ArrayList<File>(completed));
+    }
+  }
+
+  File nextFile() {
+    return(namer.nextFile(dir));
+  }
+
+  boolean isDue(long durationUs, long bytes) {
+    return((maxDurationUs > 0 && durationUs >= maxDurationUs)
+        || (maxBytes > 0 && bytes >= maxBytes));
+  }
+
+  /**
+   * Finishes the segment in the background.
+   */
+  Future<?> finish(final MediaMuxer muxer, final File segment) {
+    return(finisher.submit(new Runnable() {
+      @Override
+      public void run() {
+        finishSync(muxer, segment);
+      }
+    }));
+  }
+
+  /**
+   * Finishes the segment, after any others still being
+   * finished, and waits for it.
+   */
+  void finishAndWait(MediaMuxer muxer, File segment) {
+    try {
+      finish(muxer, segment).get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    catch (ExecutionException e) {
+      Log.e("CWAC-Camera", "Exception finishing segment", e);
+    }
+  }
+
+  private void finishSync(MediaMuxer muxer, File segment) {
+    try {
+      muxer.stop();
+    }
+    catch (RuntimeException e) {
+      Log.e("CWAC-Camera", "Exception finishing segment", e);
+      segment.delete();
+
+      return;
+    }
+    finally {
+      muxer.release();
+    }
+
+    ArrayList<File> expired=new ArrayList<File>();
+
+    synchronized(completed) {
+      completed.add(segment);
+
+      while (keepLast > 0 && completed.size() > keepLast) {
+        expired.add(completed.poll());
+      }
+    }
+
+    if (listener != null) {
+      listener.onSegmentComplete(segment);
+    }
+
+    for (File old : expired) {
+      old.delete();
+
+      if (listener != null) {
+        listener.onSegmentDeleted(old);
+      }
+    }
+  }
+}
@@ -21,30 +21,53 @@ import android.hardware.Camera;
 import android.media.CamcorderProfile;
 import android.media.MediaActionSound;
 import android.media.MediaRecorder;
-import android.media.MediaScannerConnection;
 import android.os.Build;
 import android.os.Environment;
 import android.util.Log;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
+import java.io.IOException;
+import java.io.OutputStream;
 
 public class SimpleCameraHost implements CameraHost {
-  private static final String[] SCAN_TYPES= { "image/jpeg" };
   private Context ctxt=null;
   private int cameraId=-1;
   private DeviceProfile profile=null;
   private File photoDirectory=null;
   private File videoDirectory=null;
+  private File lastVideoPath=null;
   private RecordingHint recordingHint=null;
   private boolean mirrorFFC=false;
   private boolean useFrontFacingCamera=false;
   private boolean scanSavedImage=true;
   private boolean useFullBleedPreview=true;
   private boolean useSingleShotMode=false;
+  private boolean useMemoryAwarePictureSize=false;
+  private int cameraStandbyTimeout=0;
+  private float maxPictureCleanupHeapUsage=1.0f;
+  private ImageSaveQueue saveQueue=null;
+  private MediaScanBatcher scanBatcher=null;
+  private PictureStager pictureStager=null;
+  private final FileNamer photoNamer=new FileNamer("Photo_", ".jpg");
+  private final FileNamer pngNamer=new FileNamer("Photo_", ".png");
+  private final FileNamer webpNamer=new FileNamer("Photo_", ".webp");
+  private final FileNamer videoNamer=new FileNamer("Video_", ".mp4");
+  private final ImageSaveQueue.Listener saveListener=
+      new ImageSaveQueue.Listener() {
+        @Override
+        public void onImageSaved(PictureTransaction xact, File file) {
+          SimpleCameraHost.this.onImageSaved(xact, file);
+        }
+
+        @Override
+        public void onImageSaveFailed(PictureTransaction xact, File file,
+                                      IOException e) {
+          if (getNamer(xact.getSavedFormat()).isGenerated(file.getName())) {
+            file.delete();
+          }
+
+          handleException(e);
+        }
+      };
 
   public SimpleCameraHost(Context _ctxt) {
     this.ctxt=_ctxt.getApplicationContext();
@@ -70,7 +93,27 @@ public class SimpleCameraHost implements CameraHost {
   @Override
   public void configureRecorderOutput(int cameraId,
                                       MediaRecorder recorder) {
-    recorder.setOutputFile(getVideoPath().getAbsolutePath());
+    File video=videoNamer.reserve(getVideoPath());
+
+    synchronized(this) {
+      lastVideoPath=video;
+    }
+
+    recorder.setOutputFile(video.getAbsolutePath());
+  }
+
+  @Override
+  public void onRecordingDisarmed(int cameraId) {
+    File video;
+
+    synchronized(this) {
+      video=lastVideoPath;
+      lastVideoPath=null;
+    }
+
+    if (video != null && video.length() == 0) {
+      video.delete();
+    }
   }
 
   @TargetApi(Build.VERSION_CODES.HONEYCOMB)
@@ -111,18 +154,14 @@ public class SimpleCameraHost implements CameraHost {
     if (count > 0) {
       result=0; // if we have a camera, default to this one
 
-      Camera.CameraInfo info=new Camera.CameraInfo();
-
       for (int i=0; i < count; i++) {
-        Camera.getCameraInfo(i, info);
+        CameraCapabilities info=CameraCapabilities.get(ctxt, i);
 
-        if (info.facing == Camera.CameraInfo.CAMERA_FACING_BACK
-            && !useFrontFacingCamera()) {
+        if (!info.isFrontFacing() && !useFrontFacingCamera()) {
           result=i;
           break;
         }
-        else if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT
-            && useFrontFacingCamera()) {
+        else if (info.isFrontFacing() && useFrontFacingCamera()) {
           result=i;
           break;
         }
@@ -148,6 +187,11 @@ public class SimpleCameraHost implements CameraHost {
   @Override
   public Camera.Size getPictureSize(PictureTransaction xact,
                                     Camera.Parameters parameters) {
+    if (useMemoryAwarePictureSize()) {
+      return(CameraUtils.getMemoryAwarePictureSize(ctxt, this, xact,
+                                                   parameters));
+    }
+
     return(CameraUtils.getLargestPictureSize(this, parameters));
   }
 
@@ -201,29 +245,45 @@ public class SimpleCameraHost implements CameraHost {
 
   @Override
   public void saveImage(PictureTransaction xact, byte[] image, int imageOrientation) {
-    File photo=getPhotoPath();
+    // a default name gets its file created now, or a fresh
+    // name if another host took it in the same second; a
+    // name from a subclass is overwritten
 
-    if (photo.exists()) {
-      photo.delete();
-    }
+    File photo=
+        getNamer(xact.getSavedFormat()).reserve(getPhotoPath(xact));
 
-    try {
-      FileOutputStream fos=new FileOutputStream(photo.getPath());
-      BufferedOutputStream bos=new BufferedOutputStream(fos);
+    getSaveQueue().enqueue(xact, image, photo, saveListener);
+  }
 
-      bos.write(image);
-      bos.flush();
-      fos.getFD().sync();
-      bos.close();
+  @Override
+  public OutputStream openImageStream(PictureTransaction xact)
+    throws IOException {
+    return(null);
+  }
 
-      if (scanSavedImage()) {
-        MediaScannerConnection.scanFile(ctxt,
-                                        new String[] { photo.getPath() },
-                                        SCAN_TYPES, null);
-      }
-    }
-    catch (java.io.IOException e) {
-      handleException(e);
+  @Override
+  public void onImageStreamClosed(PictureTransaction xact,
+                                  int imageOrientation) {
+    // no-op
+  }
+
+  @Override
+  public void saveRendition(PictureTransaction xact,
+                            Rendition rendition, byte[] image) {
+    // no-op
+  }
+
+  /**
+   * Called on the save queue's thread once an image from
+   * saveImage() is on disk, as far as the queue's
+   * durability setting goes. By default, this gets the
+   * image scanned by the MediaStore, if scanSavedImage() is
+   * true.
+   */
+  protected void onImageSaved(PictureTransaction xact, File photo) {
+    if (scanSavedImage()) {
+      getScanBatcher().add(photo.getPath(),
+                           getMimeType(xact.getSavedFormat()));
     }
   }
 
@@ -281,17 +341,73 @@ public class SimpleCameraHost implements CameraHost {
 
   @Override
   public float maxPictureCleanupHeapUsage() {
-    return(1.0f);
+    return(maxPictureCleanupHeapUsage);
   }
-  
-  protected File getPhotoPath() {
-    File dir=getPhotoDirectory();
 
-    dir.mkdirs();
+  @Override
+  public int getCameraStandbyTimeout() {
+    return(cameraStandbyTimeout);
+  }
+
+  @Override
+  public void onPreviewRotated(int displayOrientation,
+                               long previewGapMillis) {
+    // no-op
+  }
+
+  @Override
+  public void onCameraViewPaused() {
+    MediaScanBatcher batcher;
+
+    synchronized(this) {
+      batcher=scanBatcher;
+    }
+
+    if (batcher != null) {
+      batcher.flush();
+    }
+  }
+  @Override
+  public PictureStager getPictureStager() {
+    return(pictureStager);
+  }
+
+  @Override
+  public void onFocusStateChanged(FocusState state, long durationMillis) {
+    // no-op
+  }
+
+  protected File getPhotoPath() {
+    File dir=photoNamer.prepareDirectory(getPhotoDirectory());
 
     return(new File(dir, getPhotoFilename()));
   }
 
+  /**
+   * Where saveImage() writes the picture from this
+   * transaction. JPEGs go to getPhotoPath(). Pictures
+   * re-encoded as PNG or WebP get the name from
+   * getPhotoFilename(), with its extension swapped for the
+   * one matching the format.
+   */
+  protected File getPhotoPath(PictureTransaction xact) {
+    Bitmap.CompressFormat format=xact.getSavedFormat();
+
+    if (format == Bitmap.CompressFormat.JPEG) {
+      return(getPhotoPath());
+    }
+
+    File dir=getNamer(format).prepareDirectory(getPhotoDirectory());
+    String name=getPhotoFilename();
+    int dot=name.lastIndexOf('.');
+
+    if (dot > 0) {
+      name=name.substring(0, dot);
+    }
+
+    return(new File(dir, name + getExtension(format)));
+  }
+
   protected File getPhotoDirectory() {
     if (photoDirectory == null) {
       initPhotoDirectory();
@@ -306,16 +422,11 @@ public class SimpleCameraHost implements CameraHost {
   }
 
   protected String getPhotoFilename() {
-    String ts=
-        new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
-
-    return("Photo_" + ts + ".jpg");
+    return(photoNamer.nextName());
   }
 
   protected File getVideoPath() {
-    File dir=getVideoDirectory();
-
-    dir.mkdirs();
+    File dir=videoNamer.prepareDirectory(getVideoDirectory());
 
     return(new File(dir, getVideoFilename()));
   }
@@ -334,20 +445,73 @@ public class SimpleCameraHost implements CameraHost {
   }
 
   protected String getVideoFilename() {
-    String ts=
-        new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
-
-    return("Video_" + ts + ".mp4");
+    return(videoNamer.nextName());
   }
 
   protected boolean useFrontFacingCamera() {
     return(useFrontFacingCamera);
   }
 
+  synchronized protected MediaScanBatcher getScanBatcher() {
+    if (scanBatcher == null) {
+      scanBatcher=new MediaScanBatcher(ctxt);
+    }
+
+    return(scanBatcher);
+  }
+
+  synchronized protected ImageSaveQueue getSaveQueue() {
+    if (saveQueue == null) {
+      saveQueue=new ImageSaveQueue();
+    }
+
+    return(saveQueue);
+  }
+
   protected boolean scanSavedImage() {
     return(scanSavedImage);
   }
 
+  protected boolean useMemoryAwarePictureSize() {
+    return(useMemoryAwarePictureSize);
+  }
+
+  private FileNamer getNamer(Bitmap.CompressFormat format) {
+    if (format == Bitmap.CompressFormat.PNG) {
+      return(pngNamer);
+    }
+
+    if (format == Bitmap.CompressFormat.WEBP) {
+      return(webpNamer);
+    }
+
+    return(photoNamer);
+  }
+
+  private static String getExtension(Bitmap.CompressFormat format) {
+    if (format == Bitmap.CompressFormat.PNG) {
+      return(".png");
+    }
+
+    if (format == Bitmap.CompressFormat.WEBP) {
+      return(".webp");
+    }
+
+    return(".jpg");
+  }
+
+  private static String getMimeType(Bitmap.CompressFormat format) {
+    if (format == Bitmap.CompressFormat.PNG) {
+      return("image/png");
+    }
+
+    if (format == Bitmap.CompressFormat.WEBP) {
+      return("image/webp");
+    }
+
+    return("image/jpeg");
+  }
+
   public static class Builder {
     private SimpleCameraHost host=null;
 
@@ -369,8 +533,29 @@ public class SimpleCameraHost implements CameraHost {
       return(this);
     }
 
+    public Builder cameraStandbyTimeout(int cameraStandbyTimeout) {
+      host.cameraStandbyTimeout=cameraStandbyTimeout;
+
+      return(this);
+    }
+
+    /**
+     * Wrapped in a CalibratedDeviceProfile, if it is not one
+     * already, so calibration results apply to it.
+     */
     public Builder deviceProfile(DeviceProfile profile) {
-      host.profile=profile;
+      if (profile instanceof CalibratedDeviceProfile) {
+        host.profile=profile;
+      }
+      else {
+        host.profile=new CalibratedDeviceProfile(host.ctxt, profile);
+      }
+
+      return(this);
+    }
+
+    public Builder maxPictureCleanupHeapUsage(float maxPictureCleanupHeapUsage) {
+      host.maxPictureCleanupHeapUsage=maxPictureCleanupHeapUsage;
 
       return(this);
     }
@@ -387,12 +572,30 @@ public class SimpleCameraHost implements CameraHost {
       return(this);
     }
 
+    public Builder pictureStager(PictureStager pictureStager) {
+      host.pictureStager=pictureStager;
+
+      return(this);
+    }
+
     public Builder recordingHint(RecordingHint recordingHint) {
       host.recordingHint=recordingHint;
 
       return(this);
     }
 
+    public Builder saveQueue(ImageSaveQueue saveQueue) {
+      host.saveQueue=saveQueue;
+
+      return(this);
+    }
+
+    public Builder scanBatcher(MediaScanBatcher scanBatcher) {
+      host.scanBatcher=scanBatcher;
+
+      return(this);
+    }
+
     public Builder scanSavedImage(boolean scanSavedImage) {
       host.scanSavedImage=scanSavedImage;
 
@@ -411,6 +614,17 @@ public class SimpleCameraHost implements CameraHost {
       return(this);
     }
 
+    /**
+     * Have getPictureSize() use
+     * CameraUtils.getMemoryAwarePictureSize(), rather than
+     * getLargestPictureSize(). Off by default.
+     */
+    public Builder useMemoryAwarePictureSize(boolean useMemoryAwarePictureSize) {
+      host.useMemoryAwarePictureSize=useMemoryAwarePictureSize;
+
+      return(this);
+    }
+
     public Builder useSingleShotMode(boolean useSingleShotMode) {
       host.useSingleShotMode=useSingleShotMode;
 
@@ -63,6 +63,20 @@ class SurfacePreviewStrategy implements PreviewStrategy,
     recorder.setPreviewDisplay(previewHolder.getSurface());
   }
 
+  @Override
+  public boolean setPreviewRotation(int degrees,
+                                    final Runnable onApplied) {
+    if (degrees != 0) {
+      return(false);
+    }
+
+    if (onApplied != null) {
+      preview.post(onApplied);
+    }
+
+    return(true);
+  }
+
   @Override
   public View getWidget() {
     return(preview);
@@ -15,6 +15,7 @@
 package com.commonsware.cwac.camera;
 
 import android.annotation.TargetApi;
+import android.graphics.Matrix;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.media.MediaRecorder;
@@ -29,6 +30,7 @@ class TexturePreviewStrategy implements PreviewStrategy,
   private final CameraView cameraView;
   private TextureView widget=null;
   private SurfaceTexture surface=null;
+  private int previewRotation=0;
 
   TexturePreviewStrategy(CameraView cameraView) {
     this.cameraView=cameraView;
@@ -48,6 +50,7 @@ class TexturePreviewStrategy implements PreviewStrategy,
   @Override
   public void onSurfaceTextureSizeChanged(SurfaceTexture surface,
                                           int width, int height) {
+    applyPreviewRotation();
     cameraView.previewReset(width, height);
   }
 
@@ -79,6 +82,45 @@ class TexturePreviewStrategy implements PreviewStrategy,
     }
   }
 
+  // a 180 degree turn keeps the aspect ratio, so the
+  // TextureView can handle it without the camera having to
+  // change its display orientation
+
+  @Override
+  public boolean setPreviewRotation(int degrees,
+                                    final Runnable onApplied) {
+    if (degrees != 0 && degrees != 180) {
+      return(false);
+    }
+
+    previewRotation=degrees;
+    widget.post(new Runnable() {
+      @Override
+      public void run() {
+        applyPreviewRotation();
+
+        if (onApplied != null) {
+          onApplied.run();
+        }
+      }
+    });
+
+    return(true);
+  }
+
+  private void applyPreviewRotation() {
+    if (previewRotation == 0) {
+      widget.setTransform(null);
+    }
+    else {
+      Matrix transform=new Matrix();
+
+      transform.setRotate(previewRotation, widget.getWidth() / 2f,
+                          widget.getHeight() / 2f);
+      widget.setTransform(transform);
+    }
+  }
+
   @Override
   public View getWidget() {
     return(widget);
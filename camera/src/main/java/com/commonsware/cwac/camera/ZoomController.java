@@ -0,0 +1,273 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import android.hardware.Camera;
+import android.hardware.Camera.OnZoomChangeListener;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Zooms the camera toward the latest requested level, for
+ * UIs that request many levels in quick succession (e.g., a
+ * SeekBar being dragged, or a pinch). Requests that arrive
+ * before the camera gets to them are collapsed into the
+ * newest one, and the camera parameters are changed at most
+ * once per preview frame.
+ *
+ * If the camera supports smooth zoom, that is used.
+ * Otherwise, smooth zoom is emulated by stepping through
+ * the intermediate levels, one step per preview frame, so
+ * the whole range takes about fullRangeMillis(). Get one of
+ * these from getZoomController() on CameraView.
+ */
+final public class ZoomController implements OnZoomChangeListener {
+  public static final long DEFAULT_FULL_RANGE_MS=400;
+  private static final int DEFAULT_FPS=30;
+
+  /**
+   * Listener for zoom changes. Methods are called on a
+   * background thread.
+   */
+  public interface Listener {
+    /**
+     * @param level
+     *          the zoom level now in effect
+     * @param reachedTarget
+     *          true if this is the latest level requested
+     */
+    void onZoomChanged(int level, boolean reachedTarget);
+  }
+
+  private final CameraView cameraView;
+  private final Handler handler;
+  private int target=-1;
+  private boolean isScheduled=false;
+  private volatile long fullRangeMillis=DEFAULT_FULL_RANGE_MS;
+  private volatile Listener listener=null;
+  private boolean isSmoothZooming=false;
+  private boolean isStopRequested=false;
+  private long lastApplied=0;
+
+  ZoomController(CameraView cameraView, Handler handler) {
+    this.cameraView=cameraView;
+    this.handler=handler;
+  }
+
+  /**
+   * How long zooming across the whole range should take.
+   * Use 0 to jump straight to each requested level, without
+   * smooth zoom.
+   */
+  public ZoomController fullRangeMillis(long fullRangeMillis) {
+    this.fullRangeMillis=fullRangeMillis;
+
+    return(this);
+  }
+
+  public ZoomController listener(Listener listener) {
+    this.listener=listener;
+
+    return(this);
+  }
+
+  /**
+   * Zooms toward this level, replacing any level requested
+   * earlier that has not been reached yet. Safe to call from
+   * any thread, as often as you like.
+   *
+   * @param level
+   *          a value from 0 to getMaxZoom() (called on
+   *          Camera.Parameters)
+   */
+  public void setZoom(int level) {
+    if (level < 0) {
+      throw new IllegalArgumentException(
+                                         String.format("Invalid zoom level: %d",
+                                                       level));
+    }
+
+    synchronized(this) {
+      target=level;
+
+      if (isScheduled) {
+        return;
+      }
+
+      isScheduled=true;
+    }
+
+    handler.post(tick);
+  }
+
+  /**
+   * @return the latest level requested, or -1 if there has
+   *         been none
+   */
+  synchronized public int getTargetZoom() {
+    return(target);
+  }
+
+  @Override
+  public void onZoomChange(int zoomValue, boolean stopped, Camera camera) {
+    // keep the cached parameters in step, so the next
+    // setParameters() does not undo the zoom
+
+    Camera.Parameters params=cameraView.getCameraParameters();
+
+    if (params != null) {
+      params.setZoom(zoomValue);
+    }
+
+    int goal=getTargetZoom();
+
+    notifyListener(zoomValue, zoomValue == goal);
+
+    if (stopped) {
+      isSmoothZooming=false;
+      isStopRequested=false;
+
+      if (zoomValue != goal) {
+        schedule(0);
+      }
+    }
+  }
+
+  /**
+   * Run only in executor, when the camera is released.
+   */
+  void reset() {
+    handler.removeCallbacks(tick);
+
+    synchronized(this) {
+      isScheduled=false;
+    }
+
+    isSmoothZooming=false;
+    isStopRequested=false;
+  }
+
+  private final Runnable tick=new Runnable() {
+    @Override
+    public void run() {
+      apply();
+    }
+  };
+
+  private void apply() {
+    int goal;
+
+    synchronized(this) {
+      isScheduled=false;
+      goal=target;
+    }
+
+    Camera camera=cameraView.getCamera();
+    Camera.Parameters params=cameraView.getCameraParameters();
+
+    if (camera == null || params == null || goal < 0) {
+      return;
+    }
+
+    cameraView.disarmIfArmed();
+
+    goal=Math.min(goal, params.getMaxZoom());
+
+    int current=params.getZoom();
+    long range=fullRangeMillis;
+
+    if (range > 0 && params.isSmoothZoomSupported()) {
+      // a running smooth zoom has to stop before it can head
+      // somewhere else; onZoomChange() picks up from there
+
+      if (isSmoothZooming) {
+        if (!isStopRequested) {
+          camera.stopSmoothZoom();
+          isStopRequested=true;
+        }
+      }
+      else if (current != goal) {
+        camera.setZoomChangeListener(this);
+        camera.startSmoothZoom(goal);
+        isSmoothZooming=true;
+      }
+
+      return;
+    }
+
+    long frameInterval=getFrameInterval(params);
+    long sinceLast=SystemClock.uptimeMillis() - lastApplied;
+
+    if (sinceLast < frameInterval) {
+      schedule(frameInterval - sinceLast);
+
+      return;
+    }
+
+    if (current == goal) {
+      return;
+    }
+
+    int next=goal;
+
+    if (range > 0) {
+      int step=
+          (int)Math.max(1, params.getMaxZoom() * frameInterval / range);
+
+      if (Math.abs(goal - current) > step) {
+        next=current + (goal > current ? step : -step);
+      }
+    }
+
+    params.setZoom(next);
+    cameraView.setCameraParametersSync(params);
+    lastApplied=SystemClock.uptimeMillis();
+    notifyListener(next, next == getTargetZoom());
+
+    if (next != goal) {
+      schedule(frameInterval);
+    }
+  }
+
+  private void schedule(long delay) {
+    synchronized(this) {
+      if (isScheduled) {
+        return;
+      }
+
+      isScheduled=true;
+    }
+
+    handler.postDelayed(tick, delay);
+  }
+
+  private void notifyListener(int level, boolean reachedTarget) {
+    Listener current=listener;
+
+    if (current != null) {
+      current.onZoomChanged(level, reachedTarget);
+    }
+  }
+
+  private static long getFrameInterval(Camera.Parameters params) {
+    int[] range=new int[2];
+
+    params.getPreviewFpsRange(range);
+
+    int fps=range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] / 1000;
+
+    return(1000 / (fps > 0 ? fps : DEFAULT_FPS));
+  }
+}
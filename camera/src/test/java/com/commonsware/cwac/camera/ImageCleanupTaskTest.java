@@ -0,0 +1,209 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.hardware.Camera;
+import com.commonsware.cwac.camera.CameraHost.RecordingHint;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.shadows.ShadowCamera;
+
+@RunWith(RobolectricTestRunner.class)
+public class ImageCleanupTaskTest {
+  private static final int WIDTH=400;
+  private static final int HEIGHT=300;
+  private Context ctxt;
+  private CameraCapabilities capabilities;
+  private byte[] jpeg;
+
+  @Before
+  public void setUp() throws IOException {
+    ctxt=RuntimeEnvironment.application;
+
+    Camera.CameraInfo info=new Camera.CameraInfo();
+
+    info.facing=Camera.CameraInfo.CAMERA_FACING_BACK;
+    info.orientation=90;
+    ShadowCamera.addCameraInfo(0, info);
+    capabilities=CameraCapabilities.get(ctxt, 0);
+    jpeg=createJpeg(WIDTH, HEIGHT);
+  }
+
+  @Test
+  public void bandHeightFitsBesideOutput() {
+    // 400x300 RGB_565 output is 240000 bytes, leaving 74572
+    // for 800-byte rows
+
+    assertEquals(93,
+                 ImageCleanupTask.getBandHeight(WIDTH, HEIGHT, HEIGHT, WIDTH,
+                                                314572));
+    assertEquals(HEIGHT,
+                 ImageCleanupTask.getBandHeight(WIDTH, HEIGHT, HEIGHT, WIDTH,
+                                                Long.MAX_VALUE / 2));
+    assertEquals(0,
+                 ImageCleanupTask.getBandHeight(WIDTH, HEIGHT, HEIGHT, WIDTH,
+                                                200000));
+  }
+
+  @Test
+  public void rotatesInHeapWhenItFits() {
+    Bitmap result=cleanUp(16, 1.0f);
+
+    assertNotNull(result);
+    assertEquals(HEIGHT, result.getWidth());
+    assertEquals(WIDTH, result.getHeight());
+    assertEquals(Bitmap.Config.ARGB_8888, result.getConfig());
+  }
+
+  @Test
+  public void rotatesInBandsWhenDecodedSizeDoesNotFit() {
+    // 1MB heap at 30% is 314572 bytes: too little for the
+    // 960000 bytes of the in-heap transform, enough for the
+    // RGB_565 result plus 93-row bands
+
+    Bitmap result=cleanUp(1, 0.3f);
+
+    assertNotNull(result);
+    assertEquals(HEIGHT, result.getWidth());
+    assertEquals(WIDTH, result.getHeight());
+    assertEquals(Bitmap.Config.RGB_565, result.getConfig());
+  }
+
+  private Bitmap cleanUp(int memoryClass, float heapUsage) {
+    ActivityManager am=
+        (ActivityManager)ctxt.getSystemService(Context.ACTIVITY_SERVICE);
+
+    Shadows.shadowOf(am).setMemoryClass(memoryClass);
+
+    TestHost host=new TestHost(ctxt, heapUsage);
+    PictureTransaction xact=
+        new PictureTransaction(host).needBitmap(true).needByteArray(false)
+                                    .displayOrientation(90);
+
+    new ImageCleanupTask(ctxt, jpeg, capabilities, xact).run();
+    assertEquals(1, host.savedCount);
+
+    return(host.saved);
+  }
+
+  private static byte[] createJpeg(int width, int height)
+    throws IOException {
+    BufferedImage image=
+        new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+    for (int y=0; y < height; y++) {
+      for (int x=0; x < width; x++) {
+        image.setRGB(x, y, (x * 255 / width) << 16 | (y * 255 / height));
+      }
+    }
+
+    ByteArrayOutputStream out=new ByteArrayOutputStream();
+
+    ImageIO.write(image, "jpg", out);
+
+    return(out.toByteArray());
+  }
+
+  private static class TestHost extends SimpleCameraHost {
+    private final float heapUsage;
+    private final DeviceProfile profile=new TestProfile();
+    Bitmap saved=null;
+    int savedCount=0;
+
+    TestHost(Context ctxt, float heapUsage) {
+      super(ctxt);
+      this.heapUsage=heapUsage;
+    }
+
+    @Override
+    public DeviceProfile getDeviceProfile() {
+      return(profile);
+    }
+
+    @Override
+    public float maxPictureCleanupHeapUsage() {
+      return(heapUsage);
+    }
+
+    @Override
+    public void saveImage(PictureTransaction xact, Bitmap bitmap) {
+      saved=bitmap;
+      savedCount++;
+    }
+  }
+
+  // takes the orientation from the transaction, so the test
+  // does not depend on EXIF
+
+  private static class TestProfile extends DeviceProfile {
+    @Override
+    public boolean useTextureView() {
+      return(false);
+    }
+
+    @Override
+    public boolean portraitFFCFlipped() {
+      return(false);
+    }
+
+    @Override
+    public int getMinPictureHeight() {
+      return(0);
+    }
+
+    @Override
+    public int getMaxPictureHeight() {
+      return(Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean doesZoomActuallyWork(boolean isFFC) {
+      return(true);
+    }
+
+    @Override
+    public int getDefaultOrientation() {
+      return(-1);
+    }
+
+    @Override
+    public boolean useDeviceOrientation() {
+      return(true);
+    }
+
+    @Override
+    public int getPictureDelay() {
+      return(0);
+    }
+
+    @Override
+    public RecordingHint getDefaultRecordingHint() {
+      return(RecordingHint.NONE);
+    }
+  }
+}
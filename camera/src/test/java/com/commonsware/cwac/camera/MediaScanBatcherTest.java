@@ -0,0 +1,138 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import android.os.Handler;
+import android.os.Looper;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+@RunWith(RobolectricTestRunner.class)
+public class MediaScanBatcherTest {
+  private static final long QUIET_PERIOD=500;
+  private StubScanner scanner;
+  private MediaScanBatcher batcher;
+
+  @Before
+  public void setUp() {
+    scanner=new StubScanner();
+    batcher=
+        new MediaScanBatcher(scanner, new Handler(Looper.getMainLooper()))
+          .maxBatchSize(3).quietPeriod(QUIET_PERIOD);
+  }
+
+  @Test
+  public void scansOnceQuiet() {
+    batcher.add("/a.jpg", "image/jpeg");
+    batcher.add("/b.png", "image/png");
+    idle(QUIET_PERIOD - 1);
+
+    assertEquals(0, scanner.batches.size());
+    assertEquals(2, batcher.getPendingCount());
+
+    idle(1);
+
+    assertEquals(1, scanner.batches.size());
+    assertArrayEquals(new String[] { "/a.jpg", "/b.png" },
+                      scanner.batches.get(0));
+    assertArrayEquals(new String[] { "image/jpeg", "image/png" },
+                      scanner.types.get(0));
+    assertEquals(0, batcher.getPendingCount());
+  }
+
+  @Test
+  public void eachAddRestartsQuietPeriod() {
+    batcher.add("/a.jpg", "image/jpeg");
+    idle(QUIET_PERIOD - 100);
+    batcher.add("/b.jpg", "image/jpeg");
+    idle(QUIET_PERIOD - 100);
+
+    assertEquals(0, scanner.batches.size());
+
+    idle(100);
+
+    assertEquals(1, scanner.batches.size());
+    assertEquals(2, scanner.batches.get(0).length);
+  }
+
+  @Test
+  public void scansFullBatchRightAway() {
+    batcher.add("/a.jpg", "image/jpeg");
+    batcher.add("/b.jpg", "image/jpeg");
+    batcher.add("/c.jpg", "image/jpeg");
+
+    assertEquals(1, scanner.batches.size());
+    assertEquals(3, scanner.batches.get(0).length);
+
+    idle(QUIET_PERIOD);
+
+    assertEquals(1, scanner.batches.size());
+    assertEquals(1, batcher.getBatchesScanned());
+    assertEquals(3, batcher.getFilesScanned());
+  }
+
+  @Test
+  public void duplicateUpdatesMimeType() {
+    batcher.add("/a", "image/jpeg");
+    batcher.add("/a", "image/webp");
+    batcher.flush();
+
+    assertEquals(1, scanner.batches.size());
+    assertArrayEquals(new String[] { "/a" }, scanner.batches.get(0));
+    assertArrayEquals(new String[] { "image/webp" }, scanner.types.get(0));
+    assertEquals(2, batcher.getFilesAdded());
+    assertEquals(1, batcher.getFilesScanned());
+  }
+
+  @Test
+  public void flushCancelsPendingScan() {
+    batcher.add("/a.jpg", "image/jpeg");
+    batcher.flush();
+    idle(QUIET_PERIOD);
+
+    assertEquals(1, scanner.batches.size());
+  }
+
+  @Test
+  public void flushWithNothingPendingDoesNotScan() {
+    batcher.flush();
+    idle(QUIET_PERIOD);
+
+    assertEquals(0, scanner.batches.size());
+    assertEquals(0, batcher.getBatchesScanned());
+  }
+
+  private static void idle(long ms) {
+    ShadowLooper.idleMainLooper(ms, TimeUnit.MILLISECONDS);
+  }
+
+  private static class StubScanner implements MediaScanBatcher.Scanner {
+    final ArrayList<String[]> batches=new ArrayList<String[]>();
+    final ArrayList<String[]> types=new ArrayList<String[]>();
+
+    @Override
+    public void scan(String[] paths, String[] mimeTypes) {
+      batches.add(paths);
+      types.add(mimeTypes);
+    }
+  }
+}
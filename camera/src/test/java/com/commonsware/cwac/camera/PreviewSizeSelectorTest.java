@@ -0,0 +1,186 @@
+/***
+  Copyright (c) 2014 CommonsWare, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may
+  not use this file except in compliance with the License. You may obtain
+  a copy of the License at
+    http://www.apache.org/licenses/LICENSE-2.0
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package com.commonsware.cwac.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import android.hardware.Camera;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadow.api.Shadow;
+
+@RunWith(RobolectricTestRunner.class)
+public class PreviewSizeSelectorTest {
+  // deliberately not in area order, to check that indexes
+  // still refer to the original positions
+
+  private static final int[] SIZES= { 1920, 1080, // 0: 16:9
+      640, 480, // 1: 4:3
+      1280, 720, // 2: 16:9
+      176, 144, // 3: 11:9
+      960, 720, // 4: 4:3
+      320, 240, // 5: 4:3
+      352, 288 // 6: 11:9
+      };
+  private static final int PASSES=10000;
+
+  // width, height, display orientation, and expected index
+  // for each layout pass, cycling through portrait,
+  // landscape, and a 4:3 view
+
+  private static final int[][] LAYOUTS= { { 1080, 1920, 90, 0 },
+      { 1920, 1080, 0, 0 }, { 800, 600, 0, 4 } };
+  private PreviewSizeSelector selector;
+
+  @Before
+  public void setUp() {
+    selector=new PreviewSizeSelector(SIZES);
+  }
+
+  @Test
+  public void picksLargestWithClosestAspect() {
+    assertEquals(0, selector.selectIndex(0, 1280, 720, 0.0d));
+    assertEquals(0, selector.selectIndex(90, 720, 1280, 0.0d));
+    assertEquals(4, selector.selectIndex(0, 800, 600, 0.0d));
+    assertEquals(960, selector.getWidth(4));
+    assertEquals(720, selector.getHeight(4));
+  }
+
+  @Test
+  public void maxAreaCapsSize() {
+    selector.maxArea(1000000);
+
+    assertEquals(2, selector.selectIndex(0, 1280, 720, 0.0d));
+  }
+
+  @Test
+  public void powerBudgetCapsSize() {
+    selector.powerBudget(640L * 480 * 30, 30);
+
+    assertEquals(1, selector.selectIndex(0, 800, 600, 0.0d));
+  }
+
+  @Test
+  public void analysisSizePicksSmallestThatCovers() {
+    selector.analysisSize(300, 200);
+
+    assertEquals(5, selector.selectIndex(0, 800, 600, 0.0d));
+    assertEquals(2, selector.selectIndex(0, 1280, 720, 0.0d));
+  }
+
+  @Test
+  public void policyRulingOutEverythingIsIgnored() {
+    selector.maxArea(1);
+
+    assertEquals(0, selector.selectIndex(0, 1280, 720, 0.0d));
+  }
+
+  @Test
+  public void changingPolicyClearsCache() {
+    assertEquals(0, selector.selectIndex(0, 1280, 720, 0.0d));
+
+    selector.maxArea(1000000);
+
+    assertEquals(2, selector.selectIndex(0, 1280, 720, 0.0d));
+    assertEquals(2, selector.getSearchCount());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    for (int pass=0; pass < 2; pass++) {
+      for (int i=0; i < 8; i++) {
+        selector.selectIndex(0, 100 + i, 100, 0.0d);
+      }
+    }
+
+    assertEquals(8, selector.getSearchCount());
+
+    selector.selectIndex(0, 108, 100, 0.0d);
+    selector.selectIndex(0, 101, 100, 0.0d);
+
+    assertEquals(9, selector.getSearchCount());
+
+    selector.selectIndex(0, 100, 100, 0.0d);
+
+    assertEquals(10, selector.getSearchCount());
+  }
+
+  @Test
+  public void sharesSelectorsBySupportedSizes() {
+    Camera.Parameters first=newParameters("1920x1080,1280x720");
+    Camera.Parameters second=newParameters("1920x1080,1280x720");
+    Camera.Parameters other=newParameters("640x480,320x240");
+
+    assertSame(PreviewSizeSelector.forParameters(first),
+               PreviewSizeSelector.forParameters(second));
+    assertNotSame(PreviewSizeSelector.forParameters(first),
+                  PreviewSizeSelector.forParameters(other));
+  }
+
+  // onMeasure() asks several times per layout pass; compare
+  // that against sorting and searching afresh on every call,
+  // as getBestAspectPreviewSize() used to
+
+  @Test
+  public void benchmarkLayoutPasses() {
+    runLayoutPasses(true);
+    runLayoutPasses(false);
+
+    long start=System.nanoTime();
+
+    runLayoutPasses(true);
+
+    long cached=System.nanoTime() - start;
+
+    start=System.nanoTime();
+    runLayoutPasses(false);
+
+    long uncached=System.nanoTime() - start;
+
+    System.out.println(String.format("%d layout passes: %d ms cached, %d ms uncached",
+                                     PASSES, cached / 1000000,
+                                     uncached / 1000000));
+
+    assertEquals(LAYOUTS.length, selector.getSearchCount());
+    assertTrue(cached < uncached);
+  }
+
+  private void runLayoutPasses(boolean cached) {
+    for (int pass=0; pass < PASSES; pass++) {
+      int[] layout=LAYOUTS[pass % LAYOUTS.length];
+
+      for (int measure=0; measure < 3; measure++) {
+        PreviewSizeSelector current=
+            (cached ? selector : new PreviewSizeSelector(SIZES));
+
+        assertEquals(layout[3],
+                     current.selectIndex(layout[2], layout[0], layout[1],
+                                         0.0d));
+      }
+    }
+  }
+
+  private static Camera.Parameters newParameters(String previewSizes) {
+    Camera.Parameters result=Shadow.newInstanceOf(Camera.Parameters.class);
+
+    result.set("preview-size-values", previewSizes);
+
+    return(result);
+  }
+}
@@ -194,13 +194,7 @@ public class DemoCameraFragment extends CameraFragment implements
   public void onProgressChanged(SeekBar seekBar, int progress,
                                 boolean fromUser) {
     if (fromUser) {
-      zoom.setEnabled(false);
-      zoomTo(zoom.getProgress()).onComplete(new Runnable() {
-        @Override
-        public void run() {
-          zoom.setEnabled(true);
-        }
-      }).go();
+      getZoomController().setZoom(progress);
     }
   }
 